@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.pageseeder.snapshot.Main;
+
+/**
+ * Runs the snapshot end-to-end against a {@link MockBerlioz} site and reports the throughput.
+ *
+ * <p>
+ * The site runs in a separate JVM so that the peak heap only includes the snapshot.
+ *
+ * <p>
+ * Usage:
+ * <pre>
+ *   Benchmark [-pages n] [-fanout n] [-images n] [-asset-size bytes] [-latency ms] [-verbose] [-- snapshot options]
+ * </pre>
+ *
+ * <p>
+ * The options after <code>--</code> are passed to the snapshot, for example
+ * <code>-- -iothreads 32 -minify</code>.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class Benchmark {
+
+  private Benchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int separator = Arrays.asList(args).indexOf("--");
+    String[] options = separator >= 0 ? Arrays.copyOfRange(args, 0, separator) : args;
+    String[] extra = separator >= 0 ? Arrays.copyOfRange(args, separator + 1, args.length) : new String[0];
+
+    int pages = getInt(options, "-pages", 200);
+    int fanout = getInt(options, "-fanout", 10);
+    int images = getInt(options, "-images", 5);
+    int assetSize = getInt(options, "-asset-size", 20 * 1024);
+    int latency = getInt(options, "-latency", 20);
+    boolean verbose = Arrays.asList(options).contains("-verbose");
+
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    Process site = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), MockBerlioz.class.getName(),
+        Integer.toString(pages), Integer.toString(fanout), Integer.toString(images), Integer.toString(assetSize),
+        Integer.toString(latency)).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    BufferedReader server = new BufferedReader(new InputStreamReader(site.getInputStream(), StandardCharsets.UTF_8));
+    Path work = Files.createTempDirectory("snapshot-bench");
+    try {
+      String baseURL = server.readLine();
+      if (baseURL == null) throw new IOException("Unable to start the mock site");
+      Path load = work.resolve("load.txt");
+      Files.write(load, MockBerlioz.pages(pages), StandardCharsets.UTF_8);
+      Path output = work.resolve("output");
+
+      List<String> snapshot = new ArrayList<>();
+      snapshot.addAll(Arrays.asList("-base", baseURL, "-load", load.toString(), "-o", output.toString()));
+      snapshot.addAll(Arrays.asList(extra));
+
+      System.gc();
+      resetPeakHeap();
+      PrintStream out = System.out;
+      if (!verbose) {
+        System.setOut(new PrintStream(new NullOutputStream()));
+      }
+      long start = System.nanoTime();
+      int errors;
+      try {
+        errors = Main.run(snapshot.toArray(new String[0]));
+      } finally {
+        System.setOut(out);
+      }
+      long elapsed = System.nanoTime() - start;
+      long peakHeap = peakHeap();
+
+      // Stop the site to get the number of requests
+      site.getOutputStream().close();
+      String requests = server.readLine();
+      site.waitFor();
+
+      long[] written = measure(output);
+      double seconds = elapsed / 1e9;
+      double megabytes = written[1] / (1024.0 * 1024.0);
+      System.out.println("Snapshot benchmark");
+      System.out.println("  site:       " + pages + " pages, fanout " + fanout + ", " + images + " images of "
+          + assetSize + " bytes, latency " + latency + "ms");
+      System.out.println("  options:    " + String.join(" ", extra));
+      System.out.println("  requests:   " + requests);
+      System.out.println("  files:      " + written[0]);
+      System.out.println("  errors:     " + errors);
+      System.out.printf ("  time:       %.2f s%n", seconds);
+      System.out.printf ("  pages/s:    %.1f%n", pages / seconds);
+      System.out.printf ("  MB/s:       %.2f (%.2f MB written)%n", megabytes / seconds, megabytes);
+      System.out.printf ("  peak heap:  %.1f MB (snapshot only)%n", peakHeap / (1024.0 * 1024.0));
+    } finally {
+      site.destroy();
+      delete(work);
+    }
+  }
+
+  /**
+   * @return the number of files and total number of bytes in the directory.
+   */
+  private static long[] measure(Path dir) throws IOException {
+    long[] measure = new long[2];
+    if (!Files.isDirectory(dir)) return measure;
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.filter(Files::isRegularFile).forEach(p -> {
+        measure[0]++;
+        measure[1] += p.toFile().length();
+      });
+    }
+    return measure;
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  private static int getInt(String[] args, String name, int fallback) {
+    for (int i = 0; i < args.length - 1; i++) {
+      if (name.equals(args[i])) return Integer.parseInt(args[i + 1]);
+    }
+    return fallback;
+  }
+
+  /**
+   * Discards the progress messages of the snapshot.
+   */
+  private static final class NullOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server which mimics a Berlioz site.
+ *
+ * <p>
+ * The site is generated from the following parameters:
+ * <ul>
+ *   <li><code>pages</code>: number of HTML pages <code>/page-[n].html</code>;</li>
+ *   <li><code>fanout</code>: number of links from each page to other pages;</li>
+ *   <li><code>images</code>: number of images per page, taken from a pool shared by all pages;</li>
+ *   <li><code>assetSize</code>: size of each image in bytes;</li>
+ *   <li><code>latency</code>: delay in milliseconds before each response.</li>
+ * </ul>
+ *
+ * <p>
+ * Like Berlioz, the server returns the <code>X-Berlioz-Service</code> header for pages, includes
+ * the charset in the <code>Content-Type</code>, ignores <code>;jsessionid</code> in paths, and
+ * returns 404 for some of the scripts that pages refer to so that stubs are created.
+ *
+ * <p>
+ * Like a servlet container, requests within the same session are processed one at a time.
+ * A POST to <code>/login</code> returns a new session in the <code>JSESSIONID</code> cookie.
+ *
+ * <p>
+ * The server can be run in its own JVM so that its allocations are not measured with those of
+ * the snapshot:
+ * <pre>
+ *   MockBerlioz pages fanout images assetSize latency
+ * </pre>
+ * It prints its base URL, runs until its standard input is closed, then prints the number of
+ * requests it received.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class MockBerlioz {
+
+  /**
+   * Number of distinct images shared by the pages.
+   */
+  private static final int IMAGE_POOL = 100;
+
+  /**
+   * Number of page specific stylesheets shared by the pages.
+   */
+  private static final int STYLE_POOL = 10;
+
+  /**
+   * Pattern for the pages.
+   */
+  private static final Pattern PAGE = Pattern.compile("/page-(\\d+)\\.html");
+
+  private final int _pages;
+
+  private final int _fanout;
+
+  private final int _images;
+
+  private final int _assetSize;
+
+  private final int _latency;
+
+  private final AtomicLong _requests = new AtomicLong();
+
+  /**
+   * A lock for each session to process its requests one at a time.
+   */
+  private final ConcurrentMap<String, Object> _sessions = new ConcurrentHashMap<>();
+
+  private HttpServer _server;
+
+  private ExecutorService _executor;
+
+  /**
+   * Creates a new mock site.
+   *
+   * @param pages     The number of pages.
+   * @param fanout    The number of links from each page to other pages.
+   * @param images    The number of images per page.
+   * @param assetSize The size of each image in bytes.
+   * @param latency   The delay before each response in milliseconds.
+   */
+  public MockBerlioz(int pages, int fanout, int images, int assetSize, int latency) {
+    this._pages = pages;
+    this._fanout = fanout;
+    this._images = images;
+    this._assetSize = assetSize;
+    this._latency = latency;
+  }
+
+  public static void main(String[] args) throws IOException {
+    MockBerlioz site = new MockBerlioz(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+        Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+    site.start();
+    System.out.println(site.baseURL());
+    System.out.flush();
+    try {
+      InputStream in = System.in;
+      while (in.read() != -1) {
+        // Wait for the end of the input
+      }
+    } finally {
+      site.stop();
+    }
+    System.out.println(site.requests());
+  }
+
+  /**
+   * Starts the server on a free port of the loopback interface.
+   *
+   * @throws IOException If the server could not be started.
+   */
+  public void start() throws IOException {
+    this._server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this._executor = Executors.newCachedThreadPool();
+    this._server.setExecutor(this._executor);
+    this._server.createContext("/", this::handle);
+    this._server.start();
+  }
+
+  /**
+   * Stops the server.
+   */
+  public void stop() {
+    this._server.stop(0);
+    this._executor.shutdownNow();
+  }
+
+  /**
+   * @return The base URL of the site.
+   */
+  public String baseURL() {
+    return "http://" + this._server.getAddress().getHostString() + ":" + this._server.getAddress().getPort();
+  }
+
+  /**
+   * @return The paths to all the pages of the site.
+   */
+  public List<String> pages() {
+    return pages(this._pages);
+  }
+
+  /**
+   * @param count The number of pages.
+   *
+   * @return The paths to all the pages of a site with the specified number of pages.
+   */
+  public static List<String> pages(int count) {
+    List<String> pages = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      pages.add("/page-" + i + ".html");
+    }
+    return pages;
+  }
+
+  /**
+   * @return The number of requests received so far.
+   */
+  public long requests() {
+    return this._requests.get();
+  }
+
+  // Handler ======================================================================================
+
+  private void handle(HttpExchange exchange) throws IOException {
+    this._requests.incrementAndGet();
+    String path = exchange.getRequestURI().getPath();
+    int jsessionid = path.indexOf(";jsessionid=");
+    String session = null;
+    if (jsessionid >= 0) {
+      session = path.substring(jsessionid + 12);
+      path = path.substring(0, jsessionid);
+    }
+    if (session != null) {
+      synchronized (this._sessions.computeIfAbsent(session, k -> new Object())) {
+        respond(exchange, path);
+      }
+    } else {
+      respond(exchange, path);
+    }
+  }
+
+  private void respond(HttpExchange exchange, String path) throws IOException {
+    try {
+      if (this._latency > 0) {
+        Thread.sleep(this._latency);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    if ("/login".equals(path) && "POST".equals(exchange.getRequestMethod())) {
+      String session = UUID.randomUUID().toString().replace("-", "").toUpperCase();
+      this._sessions.put(session, new Object());
+      exchange.getResponseHeaders().add("Set-Cookie", "JSESSIONID=" + session + "; Path=/; HttpOnly");
+      send(exchange, 200, "text/html;charset=utf-8", "<html><body>Logged in</body></html>".getBytes("utf-8"));
+      return;
+    }
+    Matcher page = PAGE.matcher(path);
+    if (page.matches() && Integer.parseInt(page.group(1)) < this._pages) {
+      int n = Integer.parseInt(page.group(1));
+      exchange.getResponseHeaders().set("X-Berlioz-Service", "page-" + n);
+      send(exchange, 200, "text/html;charset=utf-8", page(n).getBytes("utf-8"));
+    } else if (path.equals("/style/global.css") || path.matches("/style/page-\\d+\\.css")) {
+      send(exchange, 200, "text/css;charset=utf-8", stylesheet(path).getBytes("utf-8"));
+    } else if (path.equals("/script/global.js")) {
+      send(exchange, 200, "application/javascript;charset=utf-8", script().getBytes("utf-8"));
+    } else if (path.matches("/images/image-\\d+\\.png")) {
+      send(exchange, 200, "image/png", image(path));
+    } else {
+      send(exchange, 404, "text/html;charset=utf-8", "<html><body>Not found</body></html>".getBytes("utf-8"));
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, String mediaType, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", mediaType);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  // Content ======================================================================================
+
+  private String page(int n) {
+    StringBuilder html = new StringBuilder();
+    html.append("<!DOCTYPE html>\n<html>\n<head>\n");
+    html.append("  <title>Page ").append(n).append("</title>\n");
+    html.append("  <link rel=\"stylesheet\" href=\"/style/global.css\"/>\n");
+    html.append("  <link rel=\"stylesheet\" href=\"/style/page-").append(n % STYLE_POOL).append(".css\"/>\n");
+    html.append("  <script src=\"/script/global.js\"></script>\n");
+    html.append("  <script src=\"/script/missing-").append(n % 5).append(".js\"></script>\n");
+    html.append("</head>\n<body>\n  <!-- Generated by the mock Berlioz server -->\n");
+    html.append("  <h1>Page ").append(n).append("</h1>\n  <ul>\n");
+    for (int i = 1; i <= this._fanout; i++) {
+      html.append("    <li><a href=\"/page-").append((n + i) % this._pages).append(".html\">Page ")
+          .append((n + i) % this._pages).append("</a></li>\n");
+    }
+    html.append("  </ul>\n");
+    for (int i = 0; i < this._images; i++) {
+      html.append("  <img src=\"/images/image-").append((n + i) % IMAGE_POOL).append(".png\" alt=\"\"/>\n");
+    }
+    for (int i = 0; i < 20; i++) {
+      html.append("  <p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.</p>\n");
+    }
+    html.append("</body>\n</html>\n");
+    return html.toString();
+  }
+
+  private static String stylesheet(String path) {
+    StringBuilder css = new StringBuilder();
+    css.append("/* ").append(path).append(" */\n");
+    css.append("body {\n  margin: 0;\n  background: url(/images/image-0.png);\n}\n");
+    for (int i = 0; i < 50; i++) {
+      css.append(".rule-").append(i).append(" {\n  color: #333;\n  padding: 1px 2px;\n}\n");
+    }
+    return css.toString();
+  }
+
+  private static String script() {
+    StringBuilder js = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      js.append("function f").append(i).append("(a) {\n  return a + ").append(i).append(";\n}\n\n");
+    }
+    return js.toString();
+  }
+
+  private byte[] image(String path) {
+    byte[] data = new byte[this._assetSize];
+    new Random(path.hashCode()).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the files of the snapshot.
+ *
+ * <p>
+ * Completed content is handed off to a queue and written in batches by dedicated writer threads
+ * so that the fetching threads do not wait for the disk. Directories which are known to exist are
+ * cached to avoid a <code>mkdirs()</code> per file, which is expensive on network file systems.
+ *
+ * <p>
+ * When <code>sync</code> is enabled, the files in each batch are all written first and then
+ * synced to disk together before being closed.
+ *
+ * <p>
+ * Before a file is overwritten, the hash of the new content is compared with the hash of the
+ * existing file: unchanged files are left untouched so that they keep their modification time.
+ * Added, changed and unchanged files are recorded in the {@link Delta} if one is specified.
+ *
+ * <p>
+ * A writer without threads writes directly on the calling thread.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class BatchWriter {
+
+  /**
+   * Size of the buffer used when streaming content to a file.
+   */
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Maximum number of files written in a single batch.
+   */
+  public static final int BATCH_SIZE = 64;
+
+  /**
+   * Suffix of the temporary files used when streaming content to a file.
+   */
+  public static final String TEMP_SUFFIX = ".part";
+
+  /**
+   * Shared writer which writes directly on the calling thread.
+   */
+  static final BatchWriter DIRECT = new BatchWriter(0, 1, false, null);
+
+  /**
+   * Marks the end of the queue.
+   */
+  private static final Entry END = new Entry(null, null);
+
+  /**
+   * The files waiting to be written.
+   */
+  private final BlockingQueue<Entry> _queue;
+
+  /**
+   * The writer threads.
+   */
+  private final Thread[] _threads;
+
+  /**
+   * Whether to sync the files to disk after each batch.
+   */
+  private final boolean _sync;
+
+  /**
+   * Records the status of the written files (may be <code>null</code>).
+   */
+  private final Delta _delta;
+
+  /**
+   * Directories which are known to exist.
+   */
+  private final Set<File> _directories = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Number of files which could not be written.
+   */
+  private final AtomicInteger _errors = new AtomicInteger();
+
+  /**
+   * Number of files handed off which have not been written yet.
+   */
+  private int _pending = 0;
+
+  /**
+   * Creates a new writer and starts its threads.
+   *
+   * @param threads  The number of writer threads (0 to write on the calling thread).
+   * @param capacity The capacity of the queue.
+   * @param sync     <code>true</code> to sync each batch to disk.
+   * @param delta    Records the status of the written files (may be <code>null</code>).
+   */
+  public BatchWriter(int threads, int capacity, boolean sync, Delta delta) {
+    this._queue = new ArrayBlockingQueue<>(capacity);
+    this._sync = sync;
+    this._delta = delta;
+    this._threads = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      this._threads[i] = new Thread(this::drain, "write-" + (i+1));
+      this._threads[i].setDaemon(true);
+      this._threads[i].start();
+    }
+  }
+
+  /**
+   * Hands off the specified content to be written to the file.
+   *
+   * <p>
+   * This method only blocks if the queue is full.
+   *
+   * @param file The file to write.
+   * @param data The content of the file.
+   *
+   * @throws IOException If writing directly and the file could not be written.
+   */
+  public void write(File file, byte[] data) throws IOException {
+    if (this._threads.length == 0) {
+      Entry entry = new Entry(file, data);
+      OutputStream out = entry.open(this);
+      if (out == null) return;
+      try {
+        out.write(data);
+        if (this._sync) {
+          entry._out.getFD().sync();
+        }
+      } finally {
+        out.close();
+      }
+      record(file, entry._status);
+      return;
+    }
+    synchronized (this) {
+      this._pending++;
+    }
+    try {
+      this._queue.put(new Entry(file, data));
+    } catch (InterruptedException ex) {
+      completed(1);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing " + file, ex);
+    }
+  }
+
+  /**
+   * Opens a buffered stream to a temporary file which replaces the specified file when committed.
+   *
+   * <p>
+   * Use this method for content which is too large to be handed off.
+   *
+   * @param file The file to write.
+   *
+   * @return A buffered output stream to the file.
+   *
+   * @throws IOException If the file could not be opened.
+   */
+  public Output open(File file) throws IOException {
+    return new Output(file, new File(file.getPath() + TEMP_SUFFIX), false, false);
+  }
+
+  /**
+   * Opens a buffered stream to the specified temporary file which may be resumed.
+   *
+   * @param file   The file to write.
+   * @param temp   The temporary file.
+   * @param append <code>true</code> to append to the existing temporary file.
+   * @param keep   <code>true</code> to keep the temporary file if the content is not committed.
+   *
+   * @return A buffered output stream to the file.
+   *
+   * @throws IOException If the file could not be opened.
+   */
+  public Output open(File file, File temp, boolean append, boolean keep) throws IOException {
+    return new Output(file, temp, append, keep);
+  }
+
+  /**
+   * Replaces the target file by the temporary file unless the content is the same.
+   *
+   * @param file   The target file.
+   * @param temp   The temporary file with the new content.
+   * @param digest The digest of the temporary file (computed if <code>null</code>).
+   *
+   * @throws IOException If the target file could not be replaced.
+   */
+  void commit(File file, File temp, byte[] digest) throws IOException {
+    if (file.isFile() && file.length() == temp.length()
+        && MessageDigest.isEqual(digest != null ? digest : digest(temp), digest(file))) {
+      Files.delete(temp.toPath());
+      record(file, Delta.Status.UNCHANGED);
+    } else {
+      Delta.Status status = file.exists() ? Delta.Status.CHANGED : Delta.Status.ADDED;
+      mkdirs(file);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      record(file, status);
+    }
+  }
+
+  /**
+   * Creates the directory of the specified file if not already known to exist.
+   *
+   * @param file The file to write.
+   */
+  void mkdirs(File file) {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null && !this._directories.contains(dir)) {
+      dir.mkdirs();
+      this._directories.add(dir);
+    }
+  }
+
+  /**
+   * Waits until all the files handed off so far have been written.
+   *
+   * <p>
+   * This does not sync anything to disk itself: when enabled, the files are synced by the writer
+   * threads after each batch, before they are counted as written.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public synchronized void awaitPending() throws InterruptedException {
+    while (this._pending > 0) {
+      wait();
+    }
+  }
+
+  /**
+   * Writes the remaining files and stops the writer threads.
+   *
+   * @return the number of files which could not be written.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public int close() throws InterruptedException {
+    awaitPending();
+    for (int i = 0; i < this._threads.length; i++) {
+      this._queue.put(END);
+    }
+    for (Thread t : this._threads) {
+      t.join();
+    }
+    return this._errors.get();
+  }
+
+  /**
+   * @return The number of files waiting to be written.
+   */
+  public int queueDepth() {
+    return this._queue.size();
+  }
+
+  // Writer threads ===============================================================================
+
+  /**
+   * Writes the queued files in batches until the end of the queue is reached.
+   */
+  private void drain() {
+    List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+    try {
+      while (true) {
+        Entry first = this._queue.take();
+        if (first == END) return;
+        batch.add(first);
+        this._queue.drainTo(batch, BATCH_SIZE - 1);
+        int ends = 0;
+        while (batch.remove(END)) {
+          ends++;
+        }
+        int count = batch.size();
+        writeBatch(batch);
+        batch.clear();
+        completed(count);
+        if (ends > 0) {
+          // Leave the other end markers for the other threads
+          for (int i = 1; i < ends; i++) {
+            this._queue.put(END);
+          }
+          return;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes all the files in the batch, then syncs them if required.
+   */
+  private void writeBatch(List<Entry> batch) {
+    for (Entry entry : batch) {
+      try {
+        OutputStream out = entry.open(this);
+        if (out == null) continue;
+        out.write(entry._data);
+        if (!this._sync) {
+          entry.close();
+        }
+        record(entry._file, entry._status);
+      } catch (IOException ex) {
+        failed(entry, ex);
+      }
+    }
+    if (this._sync) {
+      for (Entry entry : batch) {
+        try {
+          if (entry._out != null) {
+            entry._out.getFD().sync();
+          }
+        } catch (IOException ex) {
+          failed(entry, ex);
+        }
+      }
+    }
+    for (Entry entry : batch) {
+      try {
+        entry.close();
+      } catch (IOException ex) {
+        failed(entry, ex);
+      }
+    }
+  }
+
+  private void failed(Entry entry, IOException ex) {
+    this._errors.incrementAndGet();
+    System.err.println("Unable to write " + entry._file + ": " + ex);
+    try {
+      entry.close();
+    } catch (IOException ignore) {
+      // Already reported
+    }
+  }
+
+  private void record(File file, Delta.Status status) {
+    if (this._delta != null) {
+      this._delta.record(file, status);
+    }
+  }
+
+  private synchronized void completed(int count) {
+    this._pending -= count;
+    if (this._pending == 0) {
+      notifyAll();
+    }
+  }
+
+  // Directories ==================================================================================
+
+  /**
+   * Opens the file creating its directory only if not already known to exist.
+   */
+  private FileOutputStream openFile(File file) throws IOException {
+    return openFile(file, false);
+  }
+
+  private FileOutputStream openFile(File file, boolean append) throws IOException {
+    mkdirs(file);
+    try {
+      return new FileOutputStream(file, append);
+    } catch (FileNotFoundException ex) {
+      // The directory may have been removed since it was cached
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (dir == null || dir.exists()) throw ex;
+      dir.mkdirs();
+      return new FileOutputStream(file, append);
+    }
+  }
+
+  /**
+   * A file to write.
+   */
+  private static final class Entry {
+
+    private final File _file;
+
+    private final byte[] _data;
+
+    private FileOutputStream _out;
+
+    Entry(File file, byte[] data) {
+      this._file = file;
+      this._data = data;
+    }
+
+    private Delta.Status _status;
+
+    /**
+     * @return the stream to the file or <code>null</code> if the file is unchanged.
+     */
+    OutputStream open(BatchWriter writer) throws IOException {
+      if (!this._file.exists()) {
+        this._status = Delta.Status.ADDED;
+      } else if (this._file.length() == this._data.length
+          && MessageDigest.isEqual(digest(this._data), digest(this._file))) {
+        writer.record(this._file, Delta.Status.UNCHANGED);
+        return null;
+      } else {
+        this._status = Delta.Status.CHANGED;
+      }
+      this._out = writer.openFile(this._file);
+      return this._out;
+    }
+
+    void close() throws IOException {
+      if (this._out != null) {
+        FileOutputStream out = this._out;
+        this._out = null;
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * A stream to a temporary file which replaces the target file when committed, unless the
+   * content is the same.
+   */
+  public final class Output extends OutputStream {
+
+    private final File _file;
+
+    private final File _temp;
+
+    private final FileOutputStream _fos;
+
+    private final OutputStream _out;
+
+    private final MessageDigest _digest;
+
+    private final boolean _keep;
+
+    private boolean _closed = false;
+
+    Output(File file, File temp, boolean append, boolean keep) throws IOException {
+      this._file = file;
+      this._temp = temp;
+      this._keep = keep;
+      this._digest = newDigest();
+      if (append && this._temp.exists()) {
+        update(this._digest, this._temp);
+      }
+      this._fos = openFile(this._temp, append);
+      this._out = new BufferedOutputStream(this._fos, BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this._out.write(b);
+      this._digest.update((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this._out.write(b, off, len);
+      this._digest.update(b, off, len);
+    }
+
+    /**
+     * Replaces the target file by the content written so far, unless it is the same.
+     *
+     * @throws IOException If the target file could not be replaced.
+     */
+    public void commit() throws IOException {
+      this._out.flush();
+      if (_sync) {
+        this._fos.getFD().sync();
+      }
+      this._out.close();
+      this._closed = true;
+      BatchWriter.this.commit(this._file, this._temp, this._digest.digest());
+    }
+
+    /**
+     * Discards the temporary file if the content was not committed, unless it must be kept.
+     */
+    @Override
+    public void close() throws IOException {
+      if (this._closed) return;
+      this._closed = true;
+      this._out.close();
+      if (!this._keep) {
+        Files.deleteIfExists(this._temp.toPath());
+      }
+    }
+  }
+
+  // Digests ======================================================================================
+
+  private static MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  private static byte[] digest(byte[] data) throws IOException {
+    return newDigest().digest(data);
+  }
+
+  private static byte[] digest(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    update(digest, file);
+    return digest.digest();
+  }
+
+  private static void update(MessageDigest digest, File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+      }
+    }
+  }
+
+}
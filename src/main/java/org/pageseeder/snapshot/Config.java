@@ -15,6 +15,8 @@
  */
 package org.pageseeder.snapshot;
 
+import java.io.File;
+
 /**
  * The configuration for snapshot.
  *
@@ -43,6 +45,70 @@ public final class Config {
    */
   private String _jsession;
 
+  /**
+   * The pool of sessions to spread requests across (optional).
+   */
+  private SessionPool _sessions;
+
+  /**
+   * Whether to sync written files to disk.
+   */
+  private boolean _sync = false;
+
+  /**
+   * The file where missing resources are remembered between runs (optional).
+   */
+  private String _missingCache;
+
+  /**
+   * How long a missing resource is remembered in milliseconds.
+   */
+  private long _missingTTL = NegativeCache.DEFAULT_TTL;
+
+  /**
+   * Assets up to this size in bytes are inlined as data URIs (0 to disable).
+   */
+  private int _inlineThreshold = 0;
+
+  /**
+   * Whether to bundle the local stylesheets of each page.
+   */
+  private boolean _bundling = false;
+
+  /**
+   * Whether to minify HTML, CSS and JavaScript.
+   */
+  private boolean _minifying = false;
+
+  /**
+   * Number of times an interrupted download is resumed.
+   */
+  private int _retries = 3;
+
+  /**
+   * Time in milliseconds to wait for a connection to be established (0 to wait forever).
+   */
+  private int _connectTimeout = 30000;
+
+  /**
+   * Time in milliseconds to wait for data from the server before a request fails (0 to wait forever).
+   */
+  private int _readTimeout = 60000;
+
+  /**
+   * Number of parallel ranged segments for very large files (0 to disable).
+   */
+  private int _segments = 0;
+
+  /**
+   * Files from this size in bytes are downloaded in segments.
+   */
+  private long _segmentThreshold = 64L * 1024 * 1024;
+
+  /**
+   * Directory where partial downloads are kept (by default next to the output directory).
+   */
+  private String _partialDirectory = null;
 
   public Config(String baseurl, String dir) {
     this._baseurl = baseurl;
@@ -84,4 +150,196 @@ public final class Config {
   public void setJSession(String jsession) {
     this._jsession = jsession;
   }
+
+  /**
+   * The pool of sessions to spread the requests across.
+   *
+   * <p>
+   * When specified, it takes precedence over the single jsession ID.
+   *
+   * @return The pool of sessions or <code>null</code>.
+   */
+  public SessionPool getSessions() {
+    return this._sessions;
+  }
+
+  public void setSessions(SessionPool sessions) {
+    this._sessions = sessions;
+  }
+
+  /**
+   * Indicates whether written files should be synced to disk.
+   *
+   * <p>
+   * Files are synced in groups after each batch of writes.
+   *
+   * @return <code>true</code> to sync the files; <code>false</code> otherwise (default).
+   */
+  public boolean isSync() {
+    return this._sync;
+  }
+
+  public void setSync(boolean sync) {
+    this._sync = sync;
+  }
+
+  /**
+   * The file where missing resources (404 or 410) are saved at the end of the run and loaded
+   * at the start of the next run.
+   *
+   * <p>
+   * Other failures are never saved, so they are requested again on the next run.
+   *
+   * @return The path to the file or <code>null</code> if missing resources are only remembered
+   *         for the duration of the run.
+   */
+  public String getMissingCache() {
+    return this._missingCache;
+  }
+
+  public void setMissingCache(String file) {
+    this._missingCache = file;
+  }
+
+  /**
+   * How long a missing resource (404 or 410) is remembered before it is requested again.
+   *
+   * <p>
+   * Other failures are remembered for at most {@link NegativeCache#FAILURE_TTL} (one minute).
+   *
+   * @return The time-to-live in milliseconds (one day by default).
+   */
+  public long getMissingTTL() {
+    return this._missingTTL;
+  }
+
+  public void setMissingTTL(long ttl) {
+    this._missingTTL = ttl;
+  }
+
+  /**
+   * The maximum size of the images, icons and CSS assets to inline as <code>data:</code> URIs.
+   *
+   * @return The size in bytes or 0 if assets are not inlined (default).
+   */
+  public int getInlineThreshold() {
+    return this._inlineThreshold;
+  }
+
+  public void setInlineThreshold(int threshold) {
+    this._inlineThreshold = threshold;
+  }
+
+  /**
+   * Indicates whether the local stylesheets of each page are concatenated into a shared bundle.
+   *
+   * @return <code>true</code> to bundle stylesheets; <code>false</code> otherwise (default).
+   */
+  public boolean isBundling() {
+    return this._bundling;
+  }
+
+  public void setBundling(boolean bundling) {
+    this._bundling = bundling;
+  }
+
+  /**
+   * Indicates whether HTML, CSS and JavaScript are minified as they are rewritten.
+   *
+   * @see Minifier
+   *
+   * @return <code>true</code> to minify; <code>false</code> otherwise (default).
+   */
+  public boolean isMinifying() {
+    return this._minifying;
+  }
+
+  public void setMinifying(boolean minifying) {
+    this._minifying = minifying;
+  }
+
+  /**
+   * Returns how many times an interrupted download of a large file is resumed.
+   *
+   * @return The number of retries (3 by default).
+   */
+  public int getRetries() {
+    return this._retries;
+  }
+
+  public void setRetries(int retries) {
+    this._retries = retries;
+  }
+
+  /**
+   * Returns how long to wait for a connection to the server to be established.
+   *
+   * @return The timeout in milliseconds (30s by default).
+   */
+  public int getConnectTimeout() {
+    return this._connectTimeout;
+  }
+
+  public void setConnectTimeout(int timeout) {
+    this._connectTimeout = timeout;
+  }
+
+  /**
+   * Returns how long to wait for data from the server, so that a stalled download fails and can
+   * be resumed.
+   *
+   * @return The timeout in milliseconds (60s by default).
+   */
+  public int getReadTimeout() {
+    return this._readTimeout;
+  }
+
+  public void setReadTimeout(int timeout) {
+    this._readTimeout = timeout;
+  }
+
+  /**
+   * Returns the number of ranged requests used in parallel to download very large files.
+   *
+   * @see #getSegmentThreshold()
+   *
+   * @return The number of segments or 0 if files are not downloaded in segments (default).
+   */
+  public int getSegments() {
+    return this._segments;
+  }
+
+  public void setSegments(int segments) {
+    this._segments = segments;
+  }
+
+  /**
+   * Returns the size from which files are downloaded in segments when segments are enabled.
+   *
+   * @return The size in bytes (64MB by default).
+   */
+  public long getSegmentThreshold() {
+    return this._segmentThreshold;
+  }
+
+  public void setSegmentThreshold(long threshold) {
+    this._segmentThreshold = threshold;
+  }
+
+  /**
+   * Returns the directory where partial downloads are kept until they are complete.
+   *
+   * <p>
+   * It must be outside the output directory so that partial downloads are not deployed.
+   *
+   * @return The directory for partial downloads (the output directory suffixed with
+   *         <code>.partial</code> by default).
+   */
+  public String getPartialDirectory() {
+    return this._partialDirectory != null ? this._partialDirectory : new File(this._basedir).getAbsolutePath() + ".partial";
+  }
+
+  public void setPartialDirectory(String directory) {
+    this._partialDirectory = directory;
+  }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the files which were added, changed, left unchanged or removed during a run.
+ *
+ * <p>
+ * A file is only removed when the server confirms that its resource no longer exists (404 or
+ * 410); files which were not written because of a failure are left alone. The list of differences
+ * can be used to limit the deployment and CDN invalidation to the files which actually changed.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class Delta {
+
+  /**
+   * The status of a file in the output directory.
+   */
+  public enum Status {
+
+    /** The file did not exist before the run. */
+    ADDED('A'),
+
+    /** The content of the file has changed. */
+    CHANGED('M'),
+
+    /** The content of the file is the same, the file was not touched. */
+    UNCHANGED('='),
+
+    /** The resource no longer exists, the file was deleted. */
+    REMOVED('D');
+
+    private final char _code;
+
+    Status(char code) {
+      this._code = code;
+    }
+
+    /**
+     * @return The single character used for this status in the report.
+     */
+    public char code() {
+      return this._code;
+    }
+  }
+
+  /**
+   * The output directory.
+   */
+  private final Path _base;
+
+  /**
+   * The status of each file written by this run by path.
+   */
+  private final Map<String, Status> _files = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new delta for the output directory of the specified configuration.
+   *
+   * @param config The snapshot configuration.
+   */
+  public Delta(Config config) {
+    this._base = new File(config.directory()).getAbsoluteFile().toPath().normalize();
+  }
+
+  /**
+   * Records the status of a file written by this run.
+   *
+   * <p>
+   * If the same file is written more than once, it is only unchanged if it was unchanged the
+   * first time.
+   *
+   * @param file   The file.
+   * @param status Its status.
+   */
+  public void record(File file, Status status) {
+    this._files.merge(toPath(file.getAbsoluteFile().toPath().normalize()), status, (a, b) -> a == Status.UNCHANGED ? b : a);
+  }
+
+  /**
+   * Deletes the file of a resource which no longer exists and records it as removed.
+   *
+   * @param file The file of the resource.
+   *
+   * @throws IOException If the file could not be deleted.
+   */
+  public void remove(File file) throws IOException {
+    if (Files.deleteIfExists(file.toPath())) {
+      record(file, Status.REMOVED);
+    }
+  }
+
+  /**
+   * Returns the status of every file written or removed by this run.
+   *
+   * @return A map of path to status sorted by path.
+   */
+  public Map<String, Status> files() {
+    return new TreeMap<>(this._files);
+  }
+
+  /**
+   * Writes the paths of the files which were added, changed or removed.
+   *
+   * <p>
+   * Each line contains the status code (<code>A</code>, <code>M</code> or <code>D</code>) and
+   * the path to the file from the output directory separated by a space.
+   *
+   * @param out Where to write the list.
+   */
+  public void report(PrintWriter out) {
+    for (Entry<String, Status> file : files().entrySet()) {
+      if (file.getValue() != Status.UNCHANGED) {
+        out.println(file.getValue().code() + " " + file.getKey());
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Returns the number of files for each status.
+   *
+   * @return A one-line summary of the delta.
+   */
+  public String summary() {
+    int[] counts = new int[Status.values().length];
+    for (Status status : files().values()) {
+      counts[status.ordinal()]++;
+    }
+    return counts[Status.ADDED.ordinal()] + " added, "
+        + counts[Status.CHANGED.ordinal()] + " changed, "
+        + counts[Status.REMOVED.ordinal()] + " removed, "
+        + counts[Status.UNCHANGED.ordinal()] + " unchanged";
+  }
+
+  /**
+   * @return the path of the file from the output directory using '/' as separator.
+   */
+  private String toPath(Path file) {
+    Path relative = file.startsWith(this._base) ? this._base.relativize(file) : file;
+    StringBuilder path = new StringBuilder();
+    for (Path name : relative) {
+      path.append('/').append(name.toString());
+    }
+    return path.toString();
+  }
+}
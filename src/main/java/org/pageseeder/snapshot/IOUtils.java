@@ -15,6 +15,7 @@
  */
 package org.pageseeder.snapshot;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -84,6 +85,22 @@ public class IOUtils {
     return count;
   }
 
+  /**
+   * Get the contents of an <code>InputStream</code> as a <code>byte[]</code>.
+   * <p>
+   * This method buffers the input internally, so there is no need to use a <code>BufferedInputStream</code>.
+   *
+   * @param input the <code>InputStream</code> to read from
+   * @return the requested byte array
+   * @throws NullPointerException if the input is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static byte[] toByteArray(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    copy(input, output);
+    return output.toByteArray();
+  }
+
   /**
    * Get the contents of an <code>InputStream</code> as a String using the specified character encoding.
    * <p>
@@ -18,10 +18,15 @@ package org.pageseeder.snapshot;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * Makes a snapshot of a Berlioz Application
@@ -35,15 +40,36 @@ public class Main {
   }
 
   public static void main(String[] args) throws IOException {
+    int errors = run(args);
+
+    // Let scripts detect that the snapshot is incomplete
+    if (errors > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Makes a snapshot using the specified command-line arguments.
+   *
+   * <p>
+   * Unlike {@link #main(String[])}, this method does not exit the JVM when a resource fails.
+   *
+   * @param args The command-line arguments.
+   *
+   * @return The number of resources which could not be retrieved or written.
+   *
+   * @throws IOException If the list of resources could not be read.
+   */
+  public static int run(String[] args) throws IOException {
     String base = get(args, "-base");
     if (base == null) {
       usage("Base URL not specified, use -base");
-      return;
+      return 0;
     }
     String load = get(args, "-load");
     if (load == null) {
       usage("Filelist not specified, use -load");
-      return;
+      return 0;
     }
 
     // Optional jsession ID
@@ -56,17 +82,102 @@ public class Main {
     // Load the list
     List<Resource> resources = load(load);
     Config spec = new Config(base, dir);
-    if (jsessionid != null) {
+    String login = get(args, "-login");
+    if (jsessionid != null && jsessionid.indexOf(',') < 0 && login == null) {
       spec.setJSession(jsessionid);
+    } else if (jsessionid != null || login != null) {
+      // Pool of sessions
+      SessionPool sessions = new SessionPool(getInt(args, "-session-limit", 0));
+      if (jsessionid != null) {
+        for (String id : jsessionid.split(",")) {
+          if (id.trim().length() > 0) {
+            sessions.add(id.trim());
+          }
+        }
+      }
+      if (login != null) {
+        String username = get(args, "-username");
+        String password = get(args, "-password");
+        if (username == null || password == null) {
+          usage("Credentials not specified, use -username and -password with -login");
+          return 0;
+        }
+        sessions.setLogin(login, username, password);
+        sessions.login(spec, getInt(args, "-sessions", 4));
+      }
+      spec.setSessions(sessions);
+    }
+    spec.setSync(has(args, "-fsync"));
+    spec.setMissingCache(get(args, "-missing"));
+    spec.setMissingTTL(getInt(args, "-missing-ttl", (int)(NegativeCache.DEFAULT_TTL / 1000)) * 1000L);
+    String broken = get(args, "-broken");
+    String delta = get(args, "-delta");
+    spec.setInlineThreshold(getInt(args, "-inline", 0));
+    spec.setBundling(has(args, "-bundle"));
+    spec.setMinifying(has(args, "-minify"));
+    spec.setRetries(getInt(args, "-retries", spec.getRetries()));
+    spec.setConnectTimeout(getInt(args, "-connect-timeout", spec.getConnectTimeout() / 1000) * 1000);
+    spec.setReadTimeout(getInt(args, "-read-timeout", spec.getReadTimeout() / 1000) * 1000);
+    spec.setSegments(getInt(args, "-segments", 0));
+    spec.setPartialDirectory(get(args, "-partial"));
+    spec.setSegmentThreshold(getInt(args, "-segment-threshold", (int)(spec.getSegmentThreshold() >> 20)) * 1024L * 1024L);
+
+    // Pipeline options
+    int iothreads = getInt(args, "-iothreads", Pipeline.DEFAULT_IO_THREADS);
+    int cputhreads = getInt(args, "-cputhreads", Runtime.getRuntime().availableProcessors());
+    int queue = getInt(args, "-queue", Pipeline.DEFAULT_QUEUE_CAPACITY);
+    int stats = getInt(args, "-stats", 0);
+    final Pipeline pipeline = new Pipeline(spec, iothreads, cputhreads, queue);
+
+    // Report the queue depths periodically
+    Timer timer = null;
+    if (stats > 0) {
+      timer = new Timer("stats", true);
+      timer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          System.err.println(pipeline.status());
+        }
+      }, stats * 1000L, stats * 1000L);
     }
 
     // Iterate over
     for (Resource r : resources) {
-      URLFetcher page = new URLFetcher(r);
-      page.retrieve(spec);
-      page = null; // set to death
+      pipeline.submit(r);
     }
 
+    int errors = 0;
+    try {
+      errors = pipeline.await();
+      if (errors > 0) {
+        System.err.println(errors + " resource(s) could not be retrieved");
+        System.out.println("Delta (incomplete): " + pipeline.delta().summary());
+      } else {
+        System.out.println("Delta: " + pipeline.delta().summary());
+      }
+      // The changes made on disk must be reported even if the run is incomplete
+      if (delta != null) {
+        PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(delta), "utf-8"));
+        if (errors > 0) {
+          report.println("# incomplete: " + errors + " resource(s) could not be retrieved");
+        }
+        pipeline.delta().report(report);
+        report.close();
+      }
+      if (broken != null) {
+        PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(broken), "utf-8"));
+        pipeline.negativeCache().report(report);
+        report.close();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      errors++;
+    } finally {
+      if (timer != null) {
+        timer.cancel();
+      }
+    }
+    return errors;
   }
 
   /**
@@ -84,6 +195,28 @@ public class Main {
     System.err.println("Usage: java -jar pso-snapshot-"+version+".jar");
     System.err.println("Options");
     System.err.println("  -load [filelist] -base [baseurl] -o [outputdir]");
+    System.err.println("  -jsessionid [id,...] the session ID or comma-separated pool of session IDs to use");
+    System.err.println("  -login [path]        login form to obtain sessions (with -username and -password)");
+    System.err.println("  -sessions [n]        number of sessions to obtain with -login (default 4)");
+    System.err.println("  -session-limit [n]   maximum concurrent requests per session (default no limit)");
+    System.err.println("  -iothreads [n]       threads for fetching and writing (default "+Pipeline.DEFAULT_IO_THREADS+")");
+    System.err.println("  -cputhreads [n]      threads for rewriting (default number of cores)");
+    System.err.println("  -queue [n]           number of loaded resources waiting to be fetched (default 1024)");
+    System.err.println("  -stats [seconds]     periodically report the queue depth of each stage");
+    System.err.println("  -fsync               sync written files to disk after each batch");
+    System.err.println("  -missing [file]      remember missing (404/410) resources between runs in this file");
+    System.err.println("  -missing-ttl [secs]  how long to remember missing resources (default 1 day)");
+    System.err.println("  -broken [file]       report broken references for each page to this file");
+    System.err.println("  -inline [bytes]      inline images and CSS assets up to this size as data URIs");
+    System.err.println("  -bundle              bundle the local stylesheets of each page");
+    System.err.println("  -minify              minify HTML, CSS and JavaScript");
+    System.err.println("  -delta [file]        list the added (A), changed (M) and removed (D) files (marked incomplete if any resource fails)");
+    System.err.println("  -retries [n]         times to resume an interrupted large download (default 3)");
+    System.err.println("  -connect-timeout [s] time to wait for a connection to the server (default 30)");
+    System.err.println("  -read-timeout [s]    time to wait for data before a request fails (default 60)");
+    System.err.println("  -segments [n]        download very large files in n parallel ranges");
+    System.err.println("  -segment-threshold [MB] size from which files are downloaded in ranges (default 64)");
+    System.err.println("  -partial [dir]       directory for partial downloads (default: output directory + .partial)");
   }
 
   /**
@@ -101,6 +234,41 @@ public class Main {
     return null;
   }
 
+  /**
+   * Indicates whether the specified flag is present.
+   *
+   * @param args the command line arguments.
+   * @param name the name of the flag.
+   *
+   * @return <code>true</code> if present; <code>false</code> otherwise.
+   */
+  private static boolean has(String[] args, String name) {
+    for (String arg : args) {
+      if (name.equals(arg)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the integer value for the specified option if defined.
+   *
+   * @param args the command line arguments.
+   * @param name the name of the requested option.
+   * @param fallback the value to return if the option is not defined.
+   *
+   * @return the value if available or the fallback value.
+   */
+  private static int getInt(String[] args, String name, int fallback) {
+    String value = get(args, name);
+    if (value == null) return fallback;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException ex) {
+      System.err.println("Ignoring invalid value for "+name+": "+value);
+      return fallback;
+    }
+  }
+
   /**
    * Loads the configuration file
    *
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+/**
+ * Safe minification of HTML, CSS and JavaScript.
+ *
+ * <p>
+ * The minification is deliberately conservative so that it never changes how the content is
+ * rendered or executed:
+ * <ul>
+ *   <li><b>HTML</b>: comments are removed (except conditional comments, including the
+ *   <code>&lt;!--&lt;![endif]--&gt;</code> form closing downlevel-revealed blocks) and whitespace between
+ *   tags is collapsed; tags, <code>&lt;pre&gt;</code>, <code>&lt;textarea&gt;</code> and
+ *   <code>&lt;script&gt;</code> are left untouched and <code>&lt;style&gt;</code> is minified
+ *   as CSS;</li>
+ *   <li><b>CSS</b>: comments are removed (except <code>/*! ... *&#47;</code>), whitespace is
+ *   collapsed and removed around braces, semicolons, commas and after colons;</li>
+ *   <li><b>JavaScript</b>: indentation and blank lines are removed, line breaks are kept so that
+ *   automatic semicolon insertion is not affected. Scripts using template literals or line
+ *   continuations are left untouched.</li>
+ * </ul>
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class Minifier {
+
+  /**
+   * Elements whose content is copied verbatim.
+   */
+  private static final String[] PRESERVED = new String[]{ "pre", "textarea", "script" };
+
+  private Minifier() {
+  }
+
+  // HTML =========================================================================================
+
+  /**
+   * Minifies the specified HTML.
+   *
+   * @param html The HTML to minify.
+   *
+   * @return the minified HTML.
+   */
+  public static String html(String html) {
+    StringBuilder out = new StringBuilder(html.length());
+    int i = 0;
+    int length = html.length();
+    while (i < length) {
+      char c = html.charAt(i);
+      if (c == '<') {
+        // Comments
+        if (html.startsWith("<!--", i)) {
+          int end = html.indexOf("-->", i + 4);
+          end = end < 0 ? length : end + 3;
+          if (html.startsWith("<!--[", i) || html.startsWith("<!--<![", i)) {
+            out.append(html, i, end);
+          }
+          i = end;
+          continue;
+        }
+        // Preserved elements and style
+        String element = elementAt(html, i);
+        if (element != null) {
+          int start = tagEnd(html, i);
+          int close = indexOfIgnoreCase(html, "</" + element, start);
+          int end = close < 0 ? length : close;
+          out.append(html, i, start);
+          if ("style".equals(element)) {
+            out.append(css(html.substring(start, end)));
+          } else {
+            out.append(html, start, end);
+          }
+          i = end;
+          if (close >= 0) {
+            int closeEnd = tagEnd(html, close);
+            out.append(html, close, closeEnd);
+            i = closeEnd;
+          }
+          continue;
+        }
+        // Any other tag
+        int end = tagEnd(html, i);
+        out.append(html, i, end);
+        i = end;
+      } else if (Character.isWhitespace(c)) {
+        boolean newline = false;
+        while (i < length && Character.isWhitespace(html.charAt(i))) {
+          newline = newline || html.charAt(i) == '\n';
+          i++;
+        }
+        int last = out.length() - 1;
+        if (last >= 0 && (out.charAt(last) == ' ' || out.charAt(last) == '\n')) {
+          // Whitespace on both sides of a removed comment
+          if (newline) {
+            out.setCharAt(last, '\n');
+          }
+        } else {
+          out.append(newline ? '\n' : ' ');
+        }
+      } else {
+        out.append(c);
+        i++;
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Returns the name of the preserved or style element starting at the specified index.
+   */
+  private static String elementAt(String html, int i) {
+    for (String name : PRESERVED) {
+      if (isElementAt(html, i, name)) return name;
+    }
+    return isElementAt(html, i, "style") ? "style" : null;
+  }
+
+  private static boolean isElementAt(String html, int i, String name) {
+    int after = i + 1 + name.length();
+    if (after >= html.length() || !html.regionMatches(true, i + 1, name, 0, name.length())) return false;
+    char c = html.charAt(after);
+    return c == '>' || c == '/' || Character.isWhitespace(c);
+  }
+
+  /**
+   * Returns the index after the end of the tag starting at the specified index, ignoring any
+   * <code>&gt;</code> in quoted attribute values.
+   */
+  private static int tagEnd(String html, int i) {
+    char quote = 0;
+    for (int j = i + 1; j < html.length(); j++) {
+      char c = html.charAt(j);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '>') return j + 1;
+    }
+    return html.length();
+  }
+
+  private static int indexOfIgnoreCase(String s, String target, int from) {
+    for (int i = from; i <= s.length() - target.length(); i++) {
+      if (s.regionMatches(true, i, target, 0, target.length())) return i;
+    }
+    return -1;
+  }
+
+  // CSS ==========================================================================================
+
+  /**
+   * Minifies the specified CSS.
+   *
+   * @param css The CSS to minify.
+   *
+   * @return the minified CSS.
+   */
+  public static String css(String css) {
+    StringBuilder out = new StringBuilder(css.length());
+    int i = 0;
+    int length = css.length();
+    boolean space = false;
+    while (i < length) {
+      char c = css.charAt(i);
+      // Comments are treated as whitespace unless marked as important
+      if (c == '/' && css.startsWith("/*", i)) {
+        int end = css.indexOf("*/", i + 2);
+        end = end < 0 ? length : end + 2;
+        if (css.startsWith("/*!", i)) {
+          appendSpace(out, space);
+          space = false;
+          out.append(css, i, end);
+        } else {
+          space = true;
+        }
+        i = end;
+      } else if (Character.isWhitespace(c)) {
+        space = true;
+        i++;
+      } else if (c == '"' || c == '\'') {
+        int end = stringEnd(css, i);
+        appendSpace(out, space);
+        space = false;
+        out.append(css, i, end);
+        i = end;
+      } else {
+        if (c == '{' || c == '}' || c == ';' || c == ',' || c == '>') {
+          space = false;
+          trimSpace(out);
+          if (c == '}' && out.length() > 0 && out.charAt(out.length() - 1) == ';') {
+            out.setLength(out.length() - 1);
+          }
+        }
+        appendSpace(out, space);
+        space = false;
+        out.append(c);
+        i++;
+        if (c == '{' || c == '}' || c == ';' || c == ',' || c == '>' || c == ':') {
+          while (i < length && Character.isWhitespace(css.charAt(i))) {
+            i++;
+          }
+        }
+      }
+    }
+    return out.toString().trim();
+  }
+
+  private static void appendSpace(StringBuilder out, boolean space) {
+    if (space && out.length() > 0 && "{};,>:".indexOf(out.charAt(out.length() - 1)) < 0) {
+      out.append(' ');
+    }
+  }
+
+  private static void trimSpace(StringBuilder out) {
+    while (out.length() > 0 && out.charAt(out.length() - 1) == ' ') {
+      out.setLength(out.length() - 1);
+    }
+  }
+
+  /**
+   * Returns the index after the end of the quoted string starting at the specified index.
+   */
+  private static int stringEnd(String s, int i) {
+    char quote = s.charAt(i);
+    for (int j = i + 1; j < s.length(); j++) {
+      char c = s.charAt(j);
+      if (c == '\\') {
+        j++;
+      } else if (c == quote || c == '\n') return j + 1;
+    }
+    return s.length();
+  }
+
+  // JavaScript ===================================================================================
+
+  /**
+   * Minifies the specified JavaScript.
+   *
+   * @param js The JavaScript to minify.
+   *
+   * @return the minified JavaScript.
+   */
+  public static String js(String js) {
+    // Trimming lines would change template literals and continued strings
+    if (js.indexOf('`') >= 0 || js.contains("\\\n") || js.contains("\\\r\n")) return js;
+    StringBuilder out = new StringBuilder(js.length());
+    for (String line : js.split("\r?\n")) {
+      String trimmed = line.trim();
+      if (trimmed.length() > 0) {
+        out.append(trimmed).append('\n');
+      }
+    }
+    return out.toString();
+  }
+
+}
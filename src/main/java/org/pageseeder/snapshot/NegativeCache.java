@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the resources which are missing or failing so that they are not requested again.
+ *
+ * <p>
+ * Each entry expires after the time-to-live so that fixed resources are eventually retrieved.
+ * Resources which are missing (404 or 410) are remembered for the time-to-live and can be saved
+ * at the end of a run and loaded by the next one. Other failures, such as a 503, are likely to be
+ * transient: they are only remembered for a short time and are never saved.
+ *
+ * <p>
+ * This class also keeps track of which resources link to which so that the broken references
+ * can be reported for each referring page.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class NegativeCache {
+
+  /**
+   * Default time-to-live of an entry: one day.
+   */
+  public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+
+  /**
+   * Time-to-live of a failure other than a missing resource: one minute.
+   */
+  public static final long FAILURE_TTL = 60 * 1000L;
+
+  /**
+   * The time-to-live of missing resources in milliseconds.
+   */
+  private final long _ttl;
+
+  /**
+   * Missing resources: path to expiry time and status code.
+   */
+  private final Map<String, long[]> _missing = new ConcurrentHashMap<>();
+
+  /**
+   * Referring pages for each linked resource.
+   */
+  private final Map<String, Set<String>> _referrers = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new negative cache.
+   *
+   * @param ttl The time-to-live of missing resources in milliseconds, other failures are
+   *            remembered for at most {@link #FAILURE_TTL}.
+   */
+  public NegativeCache(long ttl) {
+    this._ttl = ttl;
+  }
+
+  /**
+   * Returns the status code of the resource if it is known to be missing.
+   *
+   * @param path The path to the resource.
+   *
+   * @return the HTTP status code or 0 if the resource is not known to be missing.
+   */
+  public int status(String path) {
+    long[] entry = this._missing.get(path);
+    if (entry == null) return 0;
+    if (entry[0] < System.currentTimeMillis()) {
+      this._missing.remove(path, entry);
+      return 0;
+    }
+    return (int)entry[1];
+  }
+
+  /**
+   * Records that the resource is missing or failing.
+   *
+   * @param path   The path to the resource.
+   * @param status The HTTP status code returned for the resource.
+   */
+  public void add(String path, int status) {
+    long ttl = isMissing(status) ? this._ttl : Math.min(this._ttl, FAILURE_TTL);
+    this._missing.put(path, new long[]{ System.currentTimeMillis() + ttl, status });
+  }
+
+  /**
+   * Indicates whether the status code means that the resource does not exist.
+   *
+   * @param status The HTTP status code.
+   *
+   * @return <code>true</code> for 404 and 410; <code>false</code> for other failures.
+   */
+  public static boolean isMissing(int status) {
+    return status == 404 || status == 410;
+  }
+
+  /**
+   * Records that the specified page links to the specified resource.
+   *
+   * @param referrer The path to the referring page.
+   * @param path     The path to the linked resource.
+   */
+  public void link(String referrer, String path) {
+    this._referrers.computeIfAbsent(path, k -> ConcurrentHashMap.newKeySet()).add(referrer);
+  }
+
+  /**
+   * Returns the broken references sorted by referring page.
+   *
+   * @return A map of referring page to the paths of the missing resources it links to.
+   */
+  public Map<String, Set<String>> brokenReferences() {
+    Map<String, Set<String>> broken = new TreeMap<>();
+    for (Entry<String, Set<String>> link : this._referrers.entrySet()) {
+      String path = link.getKey();
+      if (status(path) == 0) continue;
+      for (String referrer : link.getValue()) {
+        Set<String> paths = broken.get(referrer);
+        if (paths == null) {
+          paths = new TreeSet<>();
+          broken.put(referrer, paths);
+        }
+        paths.add(path);
+      }
+    }
+    return broken;
+  }
+
+  /**
+   * Writes the report of broken references for each referring page.
+   *
+   * @param out Where to write the report.
+   */
+  public void report(PrintWriter out) {
+    for (Entry<String, Set<String>> page : brokenReferences().entrySet()) {
+      out.println(page.getKey());
+      for (String path : page.getValue()) {
+        out.println("  " + status(path) + " " + path);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Loads the entries which have not expired from the specified file.
+   *
+   * <p>
+   * Each line of the file contains the expiry time, status code and path separated by tabs.
+   *
+   * @param file The file to load (ignored if it does not exist).
+   *
+   * @throws IOException If the file could not be read.
+   */
+  public void load(File file) throws IOException {
+    if (!file.exists()) return;
+    long now = System.currentTimeMillis();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf-8"));
+    try {
+      String line = reader.readLine();
+      while (line != null) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length == 3) {
+          try {
+            long expires = Long.parseLong(fields[0]);
+            int status = Integer.parseInt(fields[1]);
+            if (expires > now && isMissing(status)) {
+              this._missing.put(fields[2], new long[]{ expires, status });
+            }
+          } catch (NumberFormatException ex) {
+            System.err.println("Ignoring invalid entry in " + file + ": " + line);
+          }
+        }
+        line = reader.readLine();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Saves the missing resources which have not expired to the specified file.
+   *
+   * @param file The file to save the cache to.
+   *
+   * @throws IOException If the file could not be written.
+   */
+  public void save(File file) throws IOException {
+    long now = System.currentTimeMillis();
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"));
+    try {
+      for (Entry<String, long[]> e : new TreeMap<>(this._missing).entrySet()) {
+        long[] entry = e.getValue();
+        if (entry[0] > now && isMissing((int)entry[1])) {
+          out.print(entry[0] + "\t" + entry[1] + "\t" + e.getKey() + "\n");
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return The number of resources known to be missing.
+   */
+  public int size() {
+    return this._missing.size();
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Optimises the snapshot for the visitors of the static site.
+ *
+ * <p>
+ * Two optimisations are available:
+ * <ul>
+ *   <li><b>inlining</b>: assets smaller than a threshold are replaced by <code>data:</code> URIs
+ *   in HTML (images and icons) and CSS (any <code>url()</code> except stylesheets);</li>
+ *   <li><b>bundling</b>: the local stylesheets of a page are concatenated in a single bundle
+ *   which is shared by all the pages using the same stylesheets in the same order.</li>
+ * </ul>
+ *
+ * <p>
+ * No request is made for inlining: the decision is made from the content of the assets retrieved
+ * by the fetch stage, and a page which refers to assets that have not been retrieved yet is
+ * rewritten again once they are. The stylesheets to bundle are retrieved once per run on the
+ * fetch stage, so the rewrite stage never waits for the network.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class Optimizer {
+
+  /**
+   * Directory where bundles are stored.
+   */
+  public static final String BUNDLES = "/bundles/";
+
+  /**
+   * The charset rule which must only appear at the start of a stylesheet.
+   */
+  private static final Pattern CHARSET = Pattern.compile("@charset\\s+[^;]*;");
+
+  /**
+   * The import rule which must appear before any other rule in a stylesheet.
+   */
+  private static final Pattern IMPORT = Pattern.compile("@import\\s", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * The pipeline using this optimizer.
+   */
+  private final Pipeline _pipeline;
+
+  /**
+   * Assets up to this size in bytes are inlined (0 to disable).
+   */
+  private final int _threshold;
+
+  /**
+   * Whether to bundle the stylesheets.
+   */
+  private final boolean _bundle;
+
+  /**
+   * The data URI for each asset, completed when it has been fetched (empty when it is not inlined).
+   */
+  private final ConcurrentMap<String, CompletableFuture<String>> _inlined = new ConcurrentHashMap<>();
+
+  /**
+   * The source of each stylesheet to bundle (<code>null</code> when not available).
+   */
+  private final ConcurrentMap<String, CompletableFuture<String>> _sources = new ConcurrentHashMap<>();
+
+  /**
+   * The path to each bundle by list of stylesheets.
+   */
+  private final ConcurrentMap<String, CompletableFuture<String>> _bundles = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new optimizer.
+   *
+   * @param pipeline  The pipeline using this optimizer.
+   * @param threshold Assets up to this size in bytes are inlined (0 to disable).
+   * @param bundle    Whether to bundle the stylesheets.
+   */
+  public Optimizer(Pipeline pipeline, int threshold, boolean bundle) {
+    this._pipeline = pipeline;
+    this._threshold = threshold;
+    this._bundle = bundle;
+  }
+
+  /**
+   * @return <code>true</code> if small assets are inlined.
+   */
+  public boolean isInlining() {
+    return this._threshold > 0;
+  }
+
+  /**
+   * @return <code>true</code> if stylesheets are bundled.
+   */
+  public boolean isBundling() {
+    return this._bundle;
+  }
+
+  /**
+   * Returns the <code>data:</code> URI for the specified asset once it has been fetched.
+   *
+   * <p>
+   * The asset must be submitted to the pipeline for the returned future to complete. HTML, CSS
+   * and assets which are larger than the threshold, missing or failing are not inlined.
+   *
+   * @param path The path to the asset.
+   *
+   * @return The data URI or an empty string if the asset should not be inlined.
+   */
+  public CompletableFuture<String> inline(String path) {
+    return this._inlined.computeIfAbsent(path, k -> new CompletableFuture<>());
+  }
+
+  /**
+   * Returns the <code>data:</code> URI for the content if it is small enough to be inlined.
+   *
+   * @param mediaType The media type of the content.
+   * @param data      The content.
+   *
+   * @return The data URI or <code>null</code>.
+   */
+  public String toDataURI(String mediaType, byte[] data) {
+    if (!isInlining() || data.length > this._threshold || mediaType == null) return null;
+    return "data:" + mediaType.trim() + ";base64," + Base64.getEncoder().encodeToString(data);
+  }
+
+  /**
+   * Records the outcome of the fetch of a resource so that it can be inlined.
+   *
+   * @param path The path to the resource.
+   * @param uri  The data URI or <code>null</code> if it should not be inlined.
+   */
+  public void fetched(String path, String uri) {
+    if (!isInlining()) return;
+    inline(path).complete(uri != null ? uri : "");
+  }
+
+  /**
+   * Returns the path to the bundle for the specified stylesheets, creating it if needed.
+   *
+   * <p>
+   * The stylesheets are not bundled if any of them is not available, or if a stylesheet other
+   * than the first one imports other stylesheets since the import would be ignored.
+   *
+   * @param paths  The paths to the stylesheets in the order they appear in the page.
+   * @param config The snapshot configuration.
+   *
+   * @return The path to the bundle once it has been created or <code>null</code> if the
+   *         stylesheets cannot be bundled.
+   */
+  public CompletableFuture<String> bundle(final List<String> paths, final Config config) {
+    final String key = String.join("\n", paths);
+    CompletableFuture<String> bundle = new CompletableFuture<>();
+    CompletableFuture<String> existing = this._bundles.putIfAbsent(key, bundle);
+    if (existing != null) return existing;
+    try {
+      final String name = BUNDLES + hash(key) + ".css";
+      final List<CompletableFuture<String>> sources = new ArrayList<>();
+      for (String path : paths) {
+        sources.add(source(path, config));
+      }
+      final Resource resource = new Resource(name, "GET");
+      this._pipeline.after(CompletableFuture.allOf(sources.toArray(new CompletableFuture<?>[0])),
+          () -> build(bundle, resource, paths, sources, config));
+    } catch (IOException ex) {
+      bundle.completeExceptionally(ex);
+    }
+    return bundle;
+  }
+
+  // Private helpers ==============================================================================
+
+  /**
+   * Concatenates and rewrites the stylesheets on the rewrite stage, then writes the bundle.
+   *
+   * <p>
+   * If the stylesheets refer to assets that have not been fetched yet, the bundle is built again
+   * once they have been.
+   */
+  private void build(CompletableFuture<String> bundle, Resource resource, List<String> paths,
+      List<CompletableFuture<String>> sources, Config config) {
+    this._pipeline.rewrite(resource, () -> {
+      try {
+        String name = resource.path();
+        for (int i = 0; i < paths.size(); i++) {
+          String source = sources.get(i).join();
+          String reason = null;
+          if (source == null) {
+            reason = "is not available";
+          } else if (i > 0 && IMPORT.matcher(source).find()) {
+            reason = "imports other stylesheets";
+          }
+          if (reason != null) {
+            System.out.println("Not bundling " + paths + ": " + paths.get(i) + " " + reason);
+            bundle.complete(null);
+            return;
+          }
+        }
+        URLFetcher fetcher = new URLFetcher(resource, this._pipeline);
+        fetcher.collect();
+        StringBuilder css = new StringBuilder();
+        for (int i = 0; i < paths.size(); i++) {
+          String path = paths.get(i);
+          String source = CHARSET.matcher(sources.get(i).join()).replaceAll("");
+          css.append("/* ").append(path).append(" */\n");
+          css.append(fetcher.processCSS(source, config, path, name)).append('\n');
+        }
+        CompletableFuture<?> awaiting = fetcher.awaiting();
+        if (awaiting != null) {
+          this._pipeline.after(awaiting, () -> build(bundle, resource, paths, sources, config));
+          return;
+        }
+        String content = config.isMinifying() ? Minifier.css(css.toString()) : css.toString();
+        this._pipeline.writer().write(new File(config.directory(), name), content.getBytes(config.encoding()));
+        bundle.complete(name);
+      } catch (IOException | RuntimeException ex) {
+        bundle.completeExceptionally(ex);
+        throw ex;
+      }
+    });
+  }
+
+  /**
+   * Returns the source of the stylesheet, retrieving it on the fetch stage the first time.
+   */
+  private CompletableFuture<String> source(final String path, final Config config) {
+    CompletableFuture<String> source = new CompletableFuture<>();
+    CompletableFuture<String> existing = this._sources.putIfAbsent(path, source);
+    if (existing != null) return existing;
+    this._pipeline.fetch(new Resource(path, "GET"), () -> {
+      String css = null;
+      try {
+        Asset asset = get(path, config);
+        css = asset != null ? new String(asset._data, asset._encoding) : null;
+      } catch (IOException ex) {
+        // Not bundled, the stylesheet will be retrieved as usual
+        System.err.println("Unable to retrieve " + path + " for bundling: " + ex);
+      } finally {
+        source.complete(css);
+      }
+    });
+    return source;
+  }
+
+  /**
+   * Retrieves the stylesheet if it is successful, recording it as missing or failing otherwise.
+   *
+   * <p>
+   * The request uses the same sessions as the fetch stage, and any response which is not a
+   * stylesheet, such as a login page, is ignored.
+   */
+  private Asset get(String path, Config config) throws IOException {
+    if (this._pipeline.negativeCache().status(path) != 0) return null;
+    URLFetcher fetcher = new URLFetcher(new Resource(path, "GET"), this._pipeline);
+    HttpURLConnection connection = null;
+    try {
+      connection = fetcher.connect(config);
+      int code = connection.getResponseCode();
+      if (code >= 400) {
+        this._pipeline.negativeCache().add(path, code);
+      }
+      if (code != HttpURLConnection.HTTP_OK) return null;
+      String mediaType = connection.getContentType();
+      if (mediaType == null) return null;
+      String encoding = "utf-8";
+      int charset = mediaType.indexOf(";charset=");
+      if (charset >= 0) {
+        encoding = mediaType.substring(charset + 9);
+      }
+      int semicolon = mediaType.indexOf(';');
+      if (semicolon >= 0) {
+        mediaType = mediaType.substring(0, semicolon);
+      }
+      if (!"text/css".equalsIgnoreCase(mediaType.trim())) {
+        System.err.println("Not bundling " + path + ": served as " + mediaType);
+        return null;
+      }
+      byte[] data = IOUtils.toByteArray(connection.getInputStream());
+      return new Asset(encoding.trim(), data);
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+      fetcher.releaseSession(config);
+    }
+  }
+
+  /**
+   * Returns the first 16 hex characters of the SHA-1 of the key.
+   */
+  private static String hash(String key) throws IOException {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("utf-8"));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 8; i++) {
+        hex.append(String.format("%02x", digest[i]));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  /**
+   * The content of a retrieved asset.
+   */
+  private static final class Asset {
+
+    private final String _encoding;
+
+    private final byte[] _data;
+
+    Asset(String encoding, byte[] data) {
+      this._encoding = encoding;
+      this._data = data;
+    }
+  }
+}
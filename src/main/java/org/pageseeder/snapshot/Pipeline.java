@@ -0,0 +1,433 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the snapshot as a pipeline of stages connected by queues.
+ *
+ * <p>
+ * Each resource goes through the following stages:
+ * <ol>
+ *   <li><b>fetch</b> (I/O bound): opens the connection and reads the response; binary content
+ *   is streamed straight to disk;</li>
+ *   <li><b>rewrite</b> (CPU bound): rewrites the links in HTML and CSS and submits the linked
+ *   resources back to the fetch stage; a resource waiting for the assets it inlines or bundles
+ *   is rewritten again once they have been fetched;</li>
+ *   <li><b>write</b> (I/O bound): the rewritten content is handed off to a {@link BatchWriter}.</li>
+ * </ol>
+ *
+ * <p>
+ * The I/O stages run on large pools while the rewrite stage is sized to the number of cores, and
+ * each stage only ever runs on its own pool. Resources submitted from outside the pipeline wait
+ * for room in the fetch queue, while the resources linked from rewritten content and the tasks
+ * passed between stages are always queued so that the stages cannot dead-lock each other.
+ *
+ * <p>
+ * Each resource is only retrieved once per pipeline and resources which are known to be missing
+ * are not requested (see {@link NegativeCache}).
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class Pipeline {
+
+  /**
+   * Default number of threads for the I/O bound stages.
+   */
+  public static final int DEFAULT_IO_THREADS = 16;
+
+  /**
+   * Default number of resources submitted from outside the pipeline which may wait to be fetched,
+   * also used for the capacity of the write queue.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  /**
+   * The snapshot configuration.
+   */
+  private final Config _config;
+
+  /**
+   * Fetch stage (network).
+   */
+  private final ThreadPoolExecutor _fetch;
+
+  /**
+   * Rewrite stage (CPU).
+   */
+  private final ThreadPoolExecutor _rewrite;
+
+  /**
+   * Room in the fetch queue for the resources submitted from outside the pipeline.
+   */
+  private final Semaphore _admission;
+
+  /**
+   * Write stage (disk).
+   */
+  private final BatchWriter _writer;
+
+  /**
+   * The files added, changed and unchanged by this pipeline.
+   */
+  private final Delta _delta;
+
+  /**
+   * Missing and failing resources.
+   */
+  private final NegativeCache _missing;
+
+  /**
+   * Inlines assets and bundles stylesheets.
+   */
+  private final Optimizer _optimizer;
+
+  /**
+   * Paths of the resources which have already been submitted.
+   */
+  private final Set<String> _submitted = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Number of resources which could not be retrieved.
+   */
+  private final AtomicInteger _errors = new AtomicInteger();
+
+  /**
+   * Number of tasks submitted to any stage which have not completed yet.
+   */
+  private int _pending = 0;
+
+  /**
+   * Creates a new pipeline using the default number of threads.
+   *
+   * @param config The snapshot configuration.
+   */
+  public Pipeline(Config config) {
+    this(config, DEFAULT_IO_THREADS, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates a new pipeline.
+   *
+   * @param config     The snapshot configuration.
+   * @param ioThreads  The number of threads for fetching (a quarter of them is used for writing).
+   * @param cpuThreads The number of threads for the rewrite stage.
+   * @param capacity   The number of resources submitted from outside the pipeline which may wait
+   *                   to be fetched, and the capacity of the write queue.
+   */
+  public Pipeline(Config config, int ioThreads, int cpuThreads, int capacity) {
+    this._config = config;
+    this._fetch = newStage("fetch", ioThreads);
+    this._rewrite = newStage("rewrite", cpuThreads);
+    this._admission = new Semaphore(capacity);
+    this._delta = new Delta(config);
+    this._writer = new BatchWriter(Math.max(1, ioThreads / 4), capacity, config.isSync(), this._delta);
+    this._missing = new NegativeCache(config.getMissingTTL());
+    this._optimizer = new Optimizer(this, config.getInlineThreshold(), config.isBundling());
+    if (config.getMissingCache() != null) {
+      try {
+        this._missing.load(new File(config.getMissingCache()));
+      } catch (IOException ex) {
+        System.err.println("Unable to load missing resources from " + config.getMissingCache() + ": " + ex);
+      }
+    }
+  }
+
+  /**
+   * Submits the specified resource to the fetch stage unless it has already been submitted.
+   *
+   * <p>
+   * This method waits until there is room in the fetch queue.
+   *
+   * @param resource The resource to retrieve.
+   */
+  public void submit(final Resource resource) {
+    if (!this._submitted.add(resource.path())) return;
+    this._admission.acquireUninterruptibly();
+    try {
+      fetch(resource, true);
+    } catch (RuntimeException ex) {
+      this._admission.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Submits a resource linked from a resource of this pipeline to the fetch stage unless it has
+   * already been submitted.
+   *
+   * <p>
+   * Unlike {@link #submit(Resource)}, this method never waits.
+   *
+   * @param resource The resource to retrieve.
+   */
+  void follow(final Resource resource) {
+    if (!this._submitted.add(resource.path())) return;
+    fetch(resource, false);
+  }
+
+  /**
+   * Waits until all the submitted resources and the resources they link to have been processed,
+   * then shuts down the stages and saves the missing resources if required.
+   *
+   * @return the number of resources which could not be retrieved or written.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public int await() throws InterruptedException {
+    synchronized (this) {
+      while (this._pending > 0) {
+        wait();
+      }
+    }
+    this._fetch.shutdown();
+    this._rewrite.shutdown();
+    int errors = this._errors.get() + this._writer.close();
+    if (this._config.getMissingCache() != null) {
+      try {
+        this._missing.save(new File(this._config.getMissingCache()));
+      } catch (IOException ex) {
+        System.err.println("Unable to save missing resources to " + this._config.getMissingCache() + ": " + ex);
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * @return The number of resources waiting to be fetched.
+   */
+  public int fetchQueueDepth() {
+    return this._fetch.getQueue().size();
+  }
+
+  /**
+   * @return The number of resources waiting to be rewritten.
+   */
+  public int rewriteQueueDepth() {
+    return this._rewrite.getQueue().size();
+  }
+
+  /**
+   * @return The number of resources waiting to be written.
+   */
+  public int writeQueueDepth() {
+    return this._writer.queueDepth();
+  }
+
+  /**
+   * Returns the queue depth and number of active threads for each stage.
+   *
+   * <p>
+   * The stage with the deepest queue is usually the bottleneck.
+   *
+   * @return A one-line summary of the state of the pipeline.
+   */
+  public String status() {
+    return "fetch " + status(this._fetch)
+        + " | rewrite " + status(this._rewrite)
+        + " | write [queue=" + this._writer.queueDepth() + "]"
+        + " | pending " + pending();
+  }
+
+  // Stages =======================================================================================
+
+  /**
+   * Submits the resource to the fetch stage.
+   *
+   * @param admitted Whether the resource holds room in the fetch queue until it is fetched.
+   */
+  private void fetch(final Resource resource, final boolean admitted) {
+    final URLFetcher fetcher = new URLFetcher(resource, this);
+    execute(this._fetch, resource, () -> {
+      if (admitted) {
+        this._admission.release();
+      }
+      try {
+        if (fetcher.fetch(this._config)) {
+          rewrite(fetcher, resource);
+        }
+      } finally {
+        this._optimizer.fetched(resource.path(), fetcher.dataURI());
+      }
+    });
+  }
+
+  /**
+   * Submits the fetched resource to the rewrite stage.
+   */
+  private void rewrite(final URLFetcher fetcher, final Resource resource) {
+    execute(this._rewrite, resource, () -> {
+      CompletableFuture<?> awaiting = fetcher.rewrite(this._config);
+      if (awaiting != null) {
+        after(awaiting, () -> rewrite(fetcher, resource));
+      } else {
+        write(fetcher);
+      }
+    });
+  }
+
+  /**
+   * Hands off the rewritten resource to the write stage.
+   */
+  private void write(final URLFetcher fetcher) throws IOException {
+    fetcher.write(this._config);
+  }
+
+  /**
+   * Runs a task for the specified resource on the fetch stage.
+   *
+   * @param resource The resource the task is for (used to report errors).
+   * @param task     The task to run.
+   */
+  void fetch(Resource resource, Task task) {
+    execute(this._fetch, resource, task);
+  }
+
+  /**
+   * Runs a task for the specified resource on the rewrite stage.
+   *
+   * @param resource The resource the task is for (used to report errors).
+   * @param task     The task to run.
+   */
+  void rewrite(Resource resource, Task task) {
+    execute(this._rewrite, resource, task);
+  }
+
+  /**
+   * Runs the action once the future has completed, the pipeline is not done until then.
+   *
+   * @param future The future to wait for.
+   * @param action The action to run, usually to submit a task to a stage.
+   */
+  void after(CompletableFuture<?> future, Runnable action) {
+    started();
+    future.whenComplete((result, ex) -> {
+      try {
+        action.run();
+      } finally {
+        done();
+      }
+    });
+  }
+
+  /**
+   * @return The missing and failing resources for this pipeline.
+   */
+  public NegativeCache negativeCache() {
+    return this._missing;
+  }
+
+  /**
+   * @return The files added, changed and unchanged by this pipeline.
+   */
+  public Delta delta() {
+    return this._delta;
+  }
+
+  /**
+   * @return The optimizer for this pipeline.
+   */
+  public Optimizer optimizer() {
+    return this._optimizer;
+  }
+
+  /**
+   * @return The writer used by this pipeline.
+   */
+  BatchWriter writer() {
+    return this._writer;
+  }
+
+  /**
+   * Runs the task on the specified stage keeping track of pending tasks and errors.
+   */
+  private void execute(ThreadPoolExecutor stage, final Resource resource, final Task task) {
+    started();
+    try {
+      stage.execute(() -> {
+        try {
+          task.run();
+        } catch (IOException | RuntimeException ex) {
+          this._errors.incrementAndGet();
+          System.err.println("Unable to retrieve " + resource.path() + ": " + ex);
+        } finally {
+          done();
+        }
+      });
+    } catch (RuntimeException ex) {
+      done();
+      throw ex;
+    }
+  }
+
+  private synchronized void started() {
+    this._pending++;
+  }
+
+  private synchronized void done() {
+    this._pending--;
+    if (this._pending == 0) {
+      notifyAll();
+    }
+  }
+
+  private synchronized int pending() {
+    return this._pending;
+  }
+
+  /**
+   * A stage task.
+   */
+  interface Task {
+    void run() throws IOException;
+  }
+
+  // Utilities ====================================================================================
+
+  /**
+   * Creates a new stage with a fixed number of threads.
+   *
+   * <p>
+   * The queue is not bounded: the tasks passed between stages must not wait, the resources
+   * submitted from outside the pipeline are limited by {@link #submit(Resource)}.
+   */
+  private static ThreadPoolExecutor newStage(final String name, int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = (r) -> {
+      Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), factory);
+  }
+
+  private static String status(ThreadPoolExecutor stage) {
+    return "[queue=" + stage.getQueue().size() + " active=" + stage.getActiveCount() + "]";
+  }
+}
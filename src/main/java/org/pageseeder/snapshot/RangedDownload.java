@@ -0,0 +1,460 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads large binary content so that an interrupted download can be resumed.
+ *
+ * <p>
+ * The content is streamed to a temporary file in the directory for partial downloads, outside the
+ * output directory so that partial downloads are never deployed. When the server returns a strong
+ * <code>ETag</code> (or a <code>Last-Modified</code> date), it is stored next to the temporary
+ * file so that, if the download fails, it is resumed from where it stopped using
+ * <code>Range</code> and <code>If-Range</code> requests, within the same run or on the next run.
+ * If the content has changed since, the server returns the whole content instead.
+ *
+ * <p>
+ * Only the downloads handed to this class look for a partial download, so regular requests do
+ * not incur any additional file system access. A partial download from a previous run is resumed
+ * if the response carries the same validator.
+ *
+ * <p>
+ * When enabled, very large files are downloaded in parallel segments, each segment using its own
+ * ranged request. The completed segments are recorded next to the validator so that, if the
+ * download fails, only the missing segments are requested on the next run. When there is a pool
+ * of sessions, each segment acquires its own session so that the server can process the segments
+ * in parallel; the session of the initial request is released first so that segments never wait
+ * for it.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+final class RangedDownload {
+
+  /**
+   * The suffix of the file storing the validator of a partial download.
+   */
+  static final String VALIDATOR_SUFFIX = BatchWriter.TEMP_SUFFIX + ".etag";
+
+  /**
+   * The suffix of the file listing the completed segments of a partial download.
+   */
+  static final String SEGMENTS_SUFFIX = BatchWriter.TEMP_SUFFIX + ".segments";
+
+  /**
+   * The size of the buffer used to copy each segment.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final BatchWriter _writer;
+
+  private final Config _config;
+
+  /**
+   * The resource to download.
+   */
+  private final Resource _resource;
+
+  /**
+   * The URL of the content, including the session ID of the initial request if any.
+   */
+  private final URL _url;
+
+  /**
+   * The file to write.
+   */
+  private final File _file;
+
+  /**
+   * Releases the session of the initial request.
+   */
+  private final Runnable _release;
+
+  /**
+   * The path of the partial download without suffix.
+   */
+  private final File _partial;
+
+  /**
+   * Creates a new download.
+   *
+   * @param writer   The writer for the file.
+   * @param config   The snapshot configuration.
+   * @param resource The resource to download.
+   * @param url      The URL of the content.
+   * @param file     The file to write.
+   * @param release  Releases the session of the initial request before downloading segments.
+   */
+  RangedDownload(BatchWriter writer, Config config, Resource resource, URL url, File file, Runnable release) {
+    this._writer = writer;
+    this._config = config;
+    this._resource = resource;
+    this._url = url;
+    this._file = file;
+    this._release = release;
+    this._partial = partial(config, file);
+  }
+
+  /**
+   * Downloads the content from the connection, resuming the download if it is interrupted.
+   *
+   * @param connection The connection of a successful request for the whole content.
+   *
+   * @throws IOException If the content could not be downloaded.
+   */
+  void retrieve(HttpURLConnection connection) throws IOException {
+    // Resume the partial download of a previous run if the content has not changed
+    if (isResumable(connection)) {
+      long length = connection.getContentLengthLong();
+      connection.disconnect();
+      if (segments().isFile()) {
+        this._release.run();
+        retrieveSegments(length, toValidator(connection), true);
+        return;
+      }
+      connection = connect();
+    }
+    int attempt = 0;
+    while (true) {
+      int code = connection.getResponseCode();
+      if (code == 416) {
+        // The partial download can no longer be resumed
+        connection.disconnect();
+        discard();
+        connection = connect();
+        continue;
+      }
+      boolean resume = code == HttpURLConnection.HTTP_PARTIAL;
+      if (resume && toRangeStart(connection) != temp().length()) {
+        // Not the range we asked for, start again
+        connection.disconnect();
+        discard();
+        connection = connect();
+        continue;
+      }
+      if (!resume) {
+        Files.deleteIfExists(segments().toPath());
+        String validator = saveValidator(connection);
+        long length = connection.getContentLengthLong();
+        if (validator != null && isSegmentable(connection, length)) {
+          connection.disconnect();
+          this._release.run();
+          retrieveSegments(length, validator, false);
+          return;
+        }
+      }
+      try (BatchWriter.Output out = this._writer.open(this._file, temp(), resume, validator().isFile())) {
+        long length = connection.getContentLengthLong();
+        long copied = IOUtils.copy(connection.getInputStream(), out);
+        if (length >= 0 && copied != length) throw new IOException("Premature end of content after " + copied + " bytes");
+        out.commit();
+      } catch (IOException ex) {
+        connection.disconnect();
+        if (!validator().isFile() || ++attempt > this._config.getRetries()) throw ex;
+        System.out.println("Resuming " + this._url + " from byte " + temp().length() + " (" + ex.getMessage() + ")");
+        connection = connect();
+        continue;
+      }
+      connection.disconnect();
+      Files.deleteIfExists(validator().toPath());
+      return;
+    }
+  }
+
+  // Segments =====================================================================================
+
+  /**
+   * Indicates whether the content should be downloaded in segments.
+   */
+  private boolean isSegmentable(HttpURLConnection connection, long length) {
+    return this._config.getSegments() > 1 && length >= this._config.getSegmentThreshold()
+        && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+  }
+
+  /**
+   * Downloads the content in parallel segments into the temporary file.
+   *
+   * <p>
+   * Segments are retried individually. Each completed segment is recorded so that, if the download
+   * fails, the temporary file is kept and only the missing segments are requested next time.
+   *
+   * @param resume Whether to resume the segmented download of a previous run.
+   */
+  private void retrieveSegments(long length, String validator, boolean resume) throws IOException {
+    int segments = Math.max(1, this._config.getSegments());
+    long size = (length + segments - 1) / segments;
+    List<long[]> completed = resume ? loadSegments() : new ArrayList<>();
+    System.out.println("Fetching " + this._url + " in " + segments + " segments of " + size + " bytes"
+        + (resume ? " (resuming)" : ""));
+    File temp = temp();
+    this._writer.mkdirs(temp);
+    ExecutorService executor = Executors.newFixedThreadPool(segments);
+    try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+      raf.setLength(length);
+      FileChannel channel = raf.getChannel();
+      List<Future<Void>> futures = new ArrayList<>(segments);
+      for (long start = 0; start < length; start += size) {
+        long from = start;
+        long to = Math.min(length, start + size) - 1;
+        if (isCompleted(completed, from, to)) continue;
+        futures.add(executor.submit(() -> {
+          retrieveSegment(channel, from, to, validator);
+          if (this._config.isSync()) {
+            channel.force(false);
+          }
+          saveSegment(from, to);
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+      if (this._config.isSync()) {
+        channel.force(true);
+      }
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+      throw new IOException(ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading segments", ex);
+    } finally {
+      executor.shutdownNow();
+    }
+    this._writer.commit(this._file, temp, null);
+    Files.deleteIfExists(validator().toPath());
+    Files.deleteIfExists(segments().toPath());
+  }
+
+  /**
+   * Records that the specified range of bytes has been downloaded.
+   */
+  private synchronized void saveSegment(long from, long to) throws IOException {
+    String line = from + "-" + to + "\n";
+    Files.write(segments().toPath(), line.getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * @return the ranges of bytes recorded as downloaded by a previous run.
+   */
+  private List<long[]> loadSegments() throws IOException {
+    List<long[]> segments = new ArrayList<>();
+    for (String line : Files.readAllLines(segments().toPath(), StandardCharsets.UTF_8)) {
+      int dash = line.indexOf('-');
+      if (dash <= 0) continue;
+      try {
+        segments.add(new long[] { Long.parseLong(line.substring(0, dash)), Long.parseLong(line.substring(dash + 1).trim()) });
+      } catch (NumberFormatException ex) {
+        // Ignore the line, possibly truncated
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * @return <code>true</code> if the range of bytes is within one of the completed ranges.
+   */
+  private static boolean isCompleted(List<long[]> completed, long from, long to) {
+    for (long[] range : completed) {
+      if (range[0] <= from && to <= range[1]) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Downloads the specified range of bytes into the temporary file, using its own session if
+   * there is a pool.
+   */
+  private void retrieveSegment(FileChannel channel, long from, long to, String validator) throws IOException {
+    SessionPool sessions = this._config.getSessions();
+    SessionPool.Session session = sessions != null ? sessions.acquire() : null;
+    try {
+      URL url = session != null ? URLFetcher.toURL(this._resource, this._config, session.id()) : this._url;
+      retrieveSegment(channel, url, from, to, validator);
+    } finally {
+      if (sessions != null) {
+        sessions.release(session);
+      }
+    }
+  }
+
+  /**
+   * Downloads the specified range of bytes from the URL into the temporary file.
+   */
+  private void retrieveSegment(FileChannel channel, URL url, long from, long to, String validator) throws IOException {
+    long position = from;
+    int attempt = 0;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (position <= to) {
+      HttpURLConnection connection = URLFetcher.open(url, this._config);
+      connection.setRequestProperty("Range", "bytes=" + position + "-" + to);
+      connection.setRequestProperty("If-Range", validator);
+      try {
+        int code;
+        try {
+          connection.connect();
+          code = connection.getResponseCode();
+        } catch (IOException ex) {
+          if (++attempt > this._config.getRetries()) throw ex;
+          continue;
+        }
+        // The content may have changed since the download started
+        if (code != HttpURLConnection.HTTP_PARTIAL || toRangeStart(connection) != position)
+          throw new IOException("Unable to retrieve range " + position + "-" + to + " of " + url + " (" + code + ")");
+        try {
+          InputStream in = connection.getInputStream();
+          int n;
+          while (position <= to && (n = in.read(buffer, 0, (int) Math.min(buffer.length, to - position + 1))) != -1) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+            while (bytes.hasRemaining()) {
+              position += channel.write(bytes, position);
+            }
+          }
+          if (position <= to) throw new IOException("Premature end of range " + from + "-" + to + " of " + url);
+        } catch (IOException ex) {
+          if (++attempt > this._config.getRetries()) throw ex;
+        }
+      } finally {
+        connection.disconnect();
+      }
+    }
+  }
+
+  // Private helpers ==============================================================================
+
+  /**
+   * Opens a new connection to resume the partial download if any.
+   */
+  private HttpURLConnection connect() throws IOException {
+    HttpURLConnection connection = URLFetcher.open(this._url, this._config);
+    File temp = temp();
+    File validator = validator();
+    if (temp.length() > 0 && validator.isFile()) {
+      connection.setRequestProperty("Range", "bytes=" + temp.length() + "-");
+      connection.setRequestProperty("If-Range", new String(Files.readAllBytes(validator.toPath()), StandardCharsets.UTF_8));
+    }
+    connection.connect();
+    return connection;
+  }
+
+  /**
+   * Indicates whether there is a partial download of the same content as the response.
+   */
+  private boolean isResumable(HttpURLConnection connection) throws IOException {
+    File validator = validator();
+    File temp = temp();
+    if (!validator.isFile() || temp.length() == 0) return false;
+    String current = toValidator(connection);
+    if (current == null || !current.equals(new String(Files.readAllBytes(validator.toPath()), StandardCharsets.UTF_8))) return false;
+    // A segmented download is allocated to the full length of the content
+    return !segments().isFile() || temp.length() == connection.getContentLengthLong();
+  }
+
+  /**
+   * Discards the partial download.
+   */
+  private void discard() throws IOException {
+    Files.deleteIfExists(validator().toPath());
+    Files.deleteIfExists(segments().toPath());
+    Files.deleteIfExists(temp().toPath());
+  }
+
+  /**
+   * Stores the validator of the response so that the download can be resumed.
+   *
+   * @return the validator or <code>null</code> if the download cannot be resumed.
+   */
+  private String saveValidator(HttpURLConnection connection) throws IOException {
+    String validator = toValidator(connection);
+    File file = validator();
+    if (validator == null) {
+      Files.deleteIfExists(file.toPath());
+      return null;
+    }
+    this._writer.mkdirs(file);
+    Files.write(file.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+    return validator;
+  }
+
+  /**
+   * @return the strong <code>ETag</code> or the <code>Last-Modified</code> date of the response,
+   *         or <code>null</code> if the server does not accept ranges.
+   */
+  private static String toValidator(HttpURLConnection connection) {
+    if ("none".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))) return null;
+    String validator = connection.getHeaderField("ETag");
+    if (validator == null || validator.startsWith("W/")) {
+      validator = connection.getHeaderField("Last-Modified");
+    }
+    return validator;
+  }
+
+  /**
+   * @return the first byte of the range in the <code>Content-Range</code> header or -1.
+   */
+  private static long toRangeStart(HttpURLConnection connection) {
+    String range = connection.getHeaderField("Content-Range");
+    if (range == null || !range.startsWith("bytes ")) return -1;
+    int dash = range.indexOf('-');
+    try {
+      return dash > 6 ? Long.parseLong(range.substring(6, dash).trim()) : -1;
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the path of the partial download of the file in the directory for partial downloads.
+   */
+  private static File partial(Config config, File file) {
+    Path base = new File(config.directory()).getAbsoluteFile().toPath().normalize();
+    Path path = file.getAbsoluteFile().toPath().normalize();
+    Path partials = new File(config.getPartialDirectory()).getAbsoluteFile().toPath().normalize();
+    return path.startsWith(base) ? partials.resolve(base.relativize(path)).toFile() : file;
+  }
+
+  private File temp() {
+    return new File(this._partial.getPath() + BatchWriter.TEMP_SUFFIX);
+  }
+
+  private File validator() {
+    return new File(this._partial.getPath() + VALIDATOR_SUFFIX);
+  }
+
+  private File segments() {
+    return new File(this._partial.getPath() + SEGMENTS_SUFFIX);
+  }
+}
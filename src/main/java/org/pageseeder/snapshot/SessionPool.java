@@ -0,0 +1,305 @@
+/*
+ * Copyright 2010-2015 Allette Systems (Australia)
+ * http://www.allette.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pageseeder.snapshot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of sessions to spread the requests across.
+ *
+ * <p>
+ * Servlet containers usually process the requests of a session one at a time, so using several
+ * sessions allows the server to process authenticated requests in parallel.
+ *
+ * <p>
+ * Each request uses the least busy session, and the number of concurrent requests per session
+ * can be limited. When the server no longer recognises a session, the session is removed from the
+ * pool and, if login credentials are specified, replaced by a new one. Requests never fall back
+ * to an unauthenticated URL: if the pool is empty and no replacement is on its way, acquiring a
+ * session fails.
+ *
+ * @author agent
+ * @version 19 October 2026
+ */
+public final class SessionPool {
+
+  /**
+   * The name of the session cookie.
+   */
+  private static final String COOKIE = "JSESSIONID=";
+
+  /**
+   * The maximum number of concurrent requests per session (0 for no limit).
+   */
+  private final int _limit;
+
+  /**
+   * The sessions currently in use.
+   */
+  private final List<Session> _sessions = new ArrayList<>();
+
+  /**
+   * The number of expired sessions currently being replaced (guarded by this pool).
+   */
+  private int _replacing = 0;
+
+  /**
+   * The path to the login form (optional).
+   */
+  private String _loginPath;
+
+  private String _username;
+
+  private String _password;
+
+  /**
+   * Creates a new empty pool.
+   *
+   * @param limit The maximum number of concurrent requests per session (0 for no limit).
+   */
+  public SessionPool(int limit) {
+    this._limit = limit;
+  }
+
+  /**
+   * Adds an existing session to the pool.
+   *
+   * @param id The session ID.
+   */
+  public synchronized void add(String id) {
+    this._sessions.add(new Session(id));
+    notifyAll();
+  }
+
+  /**
+   * Sets the credentials used to obtain new sessions.
+   *
+   * <p>
+   * The credentials are posted as the <code>username</code> and <code>password</code> parameters
+   * of the login form and the session ID is read from the <code>JSESSIONID</code> cookie.
+   *
+   * @param path     The path to the login form.
+   * @param username The username.
+   * @param password The password.
+   */
+  public void setLogin(String path, String username, String password) {
+    this._loginPath = path;
+    this._username = username;
+    this._password = password;
+  }
+
+  /**
+   * Obtains new sessions using the login credentials and adds them to the pool.
+   *
+   * @param config The snapshot configuration.
+   * @param count  The number of sessions to obtain.
+   *
+   * @throws IOException If a session could not be obtained.
+   */
+  public void login(Config config, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      add(login(config));
+    }
+  }
+
+  /**
+   * @return The number of sessions in the pool.
+   */
+  public synchronized int size() {
+    return this._sessions.size();
+  }
+
+  /**
+   * Returns the least busy session, waiting for one to be available if all sessions have reached
+   * the limit of concurrent requests or if the pool is empty while expired sessions are being
+   * replaced.
+   *
+   * <p>
+   * The session must be released after use.
+   *
+   * @return The session.
+   *
+   * @throws IOException If the pool is empty and no session is being replaced, or if interrupted
+   *                     while waiting.
+   */
+  public synchronized Session acquire() throws IOException {
+    try {
+      while (true) {
+        Session best = null;
+        for (Session session : this._sessions) {
+          if ((this._limit <= 0 || session._active < this._limit) && (best == null || session._active < best._active)) {
+            best = session;
+          }
+        }
+        if (best != null) {
+          best._active++;
+          return best;
+        }
+        if (this._sessions.isEmpty() && this._replacing == 0) throw new IOException("No session available");
+        wait();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a session", ex);
+    }
+  }
+
+  /**
+   * Releases a session acquired from this pool.
+   *
+   * @param session The session to release (may be <code>null</code>).
+   */
+  public synchronized void release(Session session) {
+    if (session == null) return;
+    session._active--;
+    notifyAll();
+  }
+
+  /**
+   * Indicates whether the server no longer recognises the session used for the request.
+   *
+   * <p>
+   * The session has expired if the server sets a different session cookie, that is if it had to
+   * start a new session for the request. A <code>401</code> or <code>403</code> alone does not
+   * expire the session since the resource may simply be protected.
+   *
+   * @param session    The session used for the request.
+   * @param connection The connection.
+   *
+   * @return <code>true</code> if the session has expired; <code>false</code> otherwise.
+   *
+   * @throws IOException If the response could not be read.
+   */
+  public boolean hasExpired(Session session, HttpURLConnection connection) throws IOException {
+    // Make sure the response headers are available
+    connection.getResponseCode();
+    String id = toSessionId(connection);
+    return id != null && !id.equals(session.id());
+  }
+
+  /**
+   * Removes the expired session from the pool and replaces it with a new one if login credentials
+   * are specified.
+   *
+   * <p>
+   * Threads waiting for a session while the pool is empty are woken up once the replacement has
+   * been added or has failed.
+   *
+   * @param session The session that has expired.
+   * @param config  The snapshot configuration.
+   */
+  public void expire(Session session, Config config) {
+    synchronized (this) {
+      // Another thread is already replacing it
+      if (!this._sessions.remove(session)) return;
+      if (this._loginPath != null) {
+        this._replacing++;
+      }
+      notifyAll();
+    }
+    System.err.println("Session " + session.id() + " has expired");
+    if (this._loginPath != null) {
+      try {
+        add(login(config));
+      } catch (IOException ex) {
+        System.err.println("Unable to replace expired session: " + ex);
+      } finally {
+        synchronized (this) {
+          this._replacing--;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  // Private helpers ==============================================================================
+
+  /**
+   * Posts the credentials to the login form and returns the new session ID.
+   */
+  private String login(Config config) throws IOException {
+    if (this._loginPath == null) throw new IOException("No login credentials specified");
+    URL url = new URL(config.baseURL() + this._loginPath);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(config.getConnectTimeout());
+    connection.setReadTimeout(config.getReadTimeout());
+    try {
+      connection.setRequestMethod("POST");
+      connection.setInstanceFollowRedirects(false);
+      connection.setRequestProperty("User-Agent", URLFetcher.USER_AGENT);
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+      connection.setDoOutput(true);
+      String form = "username=" + URLEncoder.encode(this._username, "utf-8")
+          + "&password=" + URLEncoder.encode(this._password, "utf-8");
+      OutputStream out = connection.getOutputStream();
+      out.write(form.getBytes("utf-8"));
+      out.close();
+      int code = connection.getResponseCode();
+      String id = toSessionId(connection);
+      if (id == null || code >= 400) throw new IOException("Login failed with status " + code);
+      return id;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * @return the session ID set by the server in the response or <code>null</code>.
+   */
+  private static String toSessionId(HttpURLConnection connection) {
+    for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+      if (!"Set-Cookie".equalsIgnoreCase(header.getKey())) continue;
+      for (String cookie : header.getValue()) {
+        if (cookie.startsWith(COOKIE)) {
+          int end = cookie.indexOf(';');
+          return cookie.substring(COOKIE.length(), end >= 0 ? end : cookie.length());
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A session in the pool.
+   */
+  public static final class Session {
+
+    private final String _id;
+
+    /**
+     * Number of requests currently using this session (guarded by the pool).
+     */
+    private int _active = 0;
+
+    Session(String id) {
+      this._id = id;
+    }
+
+    /**
+     * @return The session ID.
+     */
+    public String id() {
+      return this._id;
+    }
+  }
+}
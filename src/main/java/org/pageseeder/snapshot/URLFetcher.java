@@ -16,14 +16,18 @@
 package org.pageseeder.snapshot;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,21 +39,97 @@ import java.util.regex.Pattern;
  */
 public final class URLFetcher {
 
+  /**
+   * The user agent sent with every request.
+   */
+  static final String USER_AGENT = "WeborganicSnapshot/1.0";
+
   /**
    * The URL to retrieve.
    */
   private final Resource _resource;
 
+  /**
+   * The pipeline this fetcher is part of (<code>null</code> when retrieving sequentially).
+   */
+  private final Pipeline _pipeline;
+
   /**
    * Stylesheets, scripts, images and regular links.
    */
   private final static Pattern LINKS = Pattern.compile("(\\<link [^>]*\\>)|(\\<script [^>]*\\>)|(\\<img [^>]*\\>)|(\\<a [^>]*\\>)");
 
+  /**
+   * Binary content up to this size (in bytes) is read in memory and handed off to the writer.
+   */
+  private final static int MAX_HANDOFF_SIZE = 256 * 1024;
+
+  /**
+   * The link attribute of an HTML element.
+   */
+  private final static Pattern HREF = Pattern.compile("(src|href)=(\"[^\"]*\"|\'[^\']*\')");
+
+  /**
+   * The relationship of a link to a stylesheet.
+   */
+  private final static Pattern STYLESHEET = Pattern.compile("rel=[\"']stylesheet[\"']", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * The relationship of a link to an icon.
+   */
+  private final static Pattern ICON = Pattern.compile("rel=[\"'][^\"']*icon[\"']", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * The media attribute of a link.
+   */
+  private final static Pattern MEDIA = Pattern.compile("media=(\"[^\"]*\"|\'[^\']*\')", Pattern.CASE_INSENSITIVE);
+
   /**
    * Stylesheets and scripts.
    */
   private final static Pattern URLS = Pattern.compile("url\\([^)]*\\)");
 
+  /**
+   * What may separate stylesheets bundled together: white space and comments, except conditional
+   * comments.
+   */
+  private final static Pattern GAP = Pattern.compile("\\s*(<!--(?!\\[|<!\\[).*?-->\\s*)*", Pattern.DOTALL);
+
+  /**
+   * The file to write to (set when fetched).
+   */
+  private File _file;
+
+  /**
+   * The path of the URL that was fetched (set when fetched).
+   */
+  private String _path;
+
+  /**
+   * The media type of the text content (set when fetched).
+   */
+  private String _mediaType;
+
+  /**
+   * The text content to rewrite and write (set when fetched).
+   */
+  private String _content;
+
+  /**
+   * The data URI of the binary content if it can be inlined (set when fetched).
+   */
+  private String _dataURI;
+
+  /**
+   * The assets and bundles the rewrite is waiting for (<code>null</code> when not rewriting).
+   */
+  private List<CompletableFuture<?>> _awaiting;
+
+  /**
+   * The session from the pool used to fetch the resource (<code>null</code> when not fetching).
+   */
+  private SessionPool.Session _session;
+
   /**
    * Creates a new Page for the specified URL
    *
@@ -59,6 +139,21 @@ public final class URLFetcher {
    */
   public URLFetcher(Resource resource) throws MalformedURLException {
     this._resource = resource;
+    this._pipeline = null;
+  }
+
+  /**
+   * Creates a new fetcher for the specified resource as part of a pipeline.
+   *
+   * <p>
+   * Linked resources are submitted to the pipeline instead of being retrieved immediately.
+   *
+   * @param resource The resource to retrieve.
+   * @param pipeline The pipeline retrieving this resource.
+   */
+  URLFetcher(Resource resource, Pipeline pipeline) {
+    this._resource = resource;
+    this._pipeline = pipeline;
   }
 
   /**
@@ -69,23 +164,37 @@ public final class URLFetcher {
    * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
    */
   public void retrieve(Config config) throws IOException {
-    URL url = new URL(config.baseURL() + this._resource.path(config.getJSession()));
+    if (fetch(config)) {
+      rewrite(config);
+      write(config);
+    }
+  }
+
+  /**
+   * Fetches the resource.
+   *
+   * <p>
+   * Binary content and stubs are written directly, text content which requires processing is
+   * kept for the {@link #rewrite(Config)} and {@link #write(Config)} stages.
+   *
+   * @param config The snapshot configuration.
+   *
+   * @return <code>true</code> if the content must be rewritten and written;
+   *         <code>false</code> if this resource is done.
+   *
+   * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
+   */
+  boolean fetch(Config config) throws IOException {
+    URL url = toURL(this._resource, config);
     // Create the file
     String path = url.getPath();
     String query = url.getQuery();
 
     String cleanpath = path;
     if (path.indexOf(";jsessionid") > 0) {
-      String ext = getExtension(this._resource.path());
       cleanpath = path.substring(0, path.indexOf(";jsessionid"));
-//      if (!(ext.equals("css") || ext.equals("js") || ext.equals("png") || ext.equals("gif") || ext.equals("jpg"))) {
-//        cleanpath = cleanpath + ";auth";
-//      }
     }
     File file = new File(config.directory(), cleanpath);
-    if (path.indexOf('.') > 0) {
-      file.getParentFile().mkdirs();
-    }
 
     // add query to the filename
     if (query != null) {
@@ -106,27 +215,189 @@ public final class URLFetcher {
       System.out.println("Skipping " + url);
     }
 
+    // Resources known to be missing are resolved locally
+    NegativeCache missing = this._pipeline != null ? this._pipeline.negativeCache() : null;
+    int known = missing != null ? missing.status(this._resource.path()) : 0;
+    if (known != 0) {
+      // Recent failures are still failures
+      if (!NegativeCache.isMissing(known)) throw new IOException("Failed recently with status " + known);
+      if (known == 404 && isStubbable(file)) {
+        System.out.println("Missing " + url + " -> Stub");
+        createStub(file, config);
+      } else {
+        System.out.println("Missing " + url + " -> " + known);
+        this._pipeline.delta().remove(file);
+      }
+      return false;
+    }
+
     // Start fetching
-    System.out.print("Fetching " + url);
-    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-    connection.setRequestMethod("GET");
-    connection.setRequestProperty("User-Agent", "WeborganicSnapshot/1.0");
-    connection.connect();
+    try {
+      HttpURLConnection connection = connect(config);
+      int code = connection.getResponseCode();
 
-    // Response code
-    int code = connection.getResponseCode();
-    if (code == 404 && isStubbable(file)) {
-      createStub(file, config);
-    } else {
-      retrieveContent(connection, file, config, path);
+      // Response code
+      if (code >= 400 && missing != null) {
+        missing.add(this._resource.path(), code);
+      }
+      if (code == 404 && isStubbable(file)) {
+        System.out.println("Fetching " + url + " -> Stub");
+        connection.disconnect();
+        createStub(file, config);
+        return false;
+      } else if (NegativeCache.isMissing(code) && missing != null) {
+        System.out.println("Fetching " + url + " -> " + code + " (missing)");
+        connection.disconnect();
+        this._pipeline.delta().remove(file);
+        return false;
+      } else if (NegativeCache.isMissing(code)) {
+        // Retrieving sequentially: same exception as when reading the content of a missing resource
+        connection.disconnect();
+        throw new FileNotFoundException(url.toString());
+      } else if (code >= 400) {
+        connection.disconnect();
+        throw new IOException("Server returned " + code + " for " + url);
+      } else {
+        return retrieveContent(connection, file, url, path, config);
+      }
+    } finally {
+      releaseSession(config);
+    }
+  }
+
+  /**
+   * Connects to the resource, using the least busy session if there is a pool.
+   *
+   * <p>
+   * If the server no longer recognises the session, the session is expired and the request is
+   * made once more with another session. The session must be released with
+   * {@link #releaseSession(Config)} once the response has been read.
+   *
+   * @param config The snapshot configuration.
+   *
+   * @return The connected connection.
+   *
+   * @throws IOException If the connection could not be established or no session is available.
+   */
+  HttpURLConnection connect(Config config) throws IOException {
+    SessionPool sessions = config.getSessions();
+    if (sessions == null) return connect(toURL(this._resource, config), config);
+    this._session = sessions.acquire();
+    HttpURLConnection connection = connect(toURL(this._resource, config, this._session.id()), config);
+
+    // Retry once with another session if the server no longer recognises it
+    if (sessions.hasExpired(this._session, connection)) {
+      connection.disconnect();
+      sessions.expire(this._session, config);
+      SessionPool.Session replacement = sessions.acquire();
+      sessions.release(this._session);
+      this._session = replacement;
+      connection = connect(toURL(this._resource, config, this._session.id()), config);
     }
+    return connection;
+  }
 
+  /**
+   * Releases the session used to fetch the resource if it has not been released yet.
+   *
+   * @param config The snapshot configuration.
+   */
+  void releaseSession(Config config) {
+    if (this._session != null) {
+      config.getSessions().release(this._session);
+      this._session = null;
+    }
+  }
+
+  /**
+   * Rewrites the fetched text content and fetches associated resources.
+   *
+   * <p>
+   * If the content refers to assets to inline or stylesheets to bundle which have not been
+   * fetched yet, the content is left as is and must be rewritten again once they have been.
+   *
+   * @param config The snapshot configuration.
+   *
+   * @return <code>null</code> if the content was rewritten; otherwise a future which completes
+   *         when the content can be rewritten again.
+   *
+   * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
+   */
+  CompletableFuture<?> rewrite(Config config) throws IOException {
+    collect();
+    String content = this._content;
+    if ("text/html".equals(this._mediaType)) {
+      content = processHTML(content, config, this._path);
+      if (config.isMinifying()) {
+        content = Minifier.html(content);
+      }
+    } else if ("text/css".equals(this._mediaType)) {
+      content = processCSS(content, config, this._path);
+      if (config.isMinifying()) {
+        content = Minifier.css(content);
+      }
+    } else if (isJavaScript(this._mediaType)) {
+      content = Minifier.js(content);
+    }
+    CompletableFuture<?> awaiting = awaiting();
+    if (awaiting == null) {
+      this._content = content;
+    }
+    return awaiting;
+  }
+
+  /**
+   * Starts collecting the assets and bundles which are not available yet while rewriting.
+   */
+  void collect() {
+    this._awaiting = new ArrayList<>();
+  }
+
+  /**
+   * Stops collecting the assets and bundles which are not available yet.
+   *
+   * @return a future which completes when they are all available or <code>null</code> if none.
+   */
+  CompletableFuture<?> awaiting() {
+    List<CompletableFuture<?>> awaiting = this._awaiting;
+    this._awaiting = null;
+    if (awaiting == null || awaiting.isEmpty()) return null;
+    return CompletableFuture.allOf(awaiting.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * @return the data URI of the fetched binary content if it can be inlined or <code>null</code>.
+   */
+  String dataURI() {
+    return this._dataURI;
+  }
+
+  /**
+   * Hands off the rewritten text content to be written to the file.
+   *
+   * @param config The snapshot configuration.
+   *
+   * @throws IOException In case of an unrecoverable and unexpected I/O error.
+   */
+  void write(Config config) throws IOException {
+    writer().write(this._file, this._content.getBytes(config.encoding()));
+    this._content = null;
+  }
+
+  /**
+   * @return the writer of the pipeline or a direct writer when retrieving sequentially.
+   */
+  private BatchWriter writer() {
+    return this._pipeline != null ? this._pipeline.writer() : BatchWriter.DIRECT;
   }
 
   /**
    * Retrieves the content from the connection.
+   *
+   * @return <code>true</code> if the content is text that must be rewritten.
    */
-  private void retrieveContent(HttpURLConnection connection, File file, Config config, String path) throws IOException {
+  private boolean retrieveContent(HttpURLConnection connection, File file, URL url, String path, Config config)
+      throws IOException {
     // Grab the metadata
     String service = connection.getHeaderField("X-Berlioz-Service");
     String mediaType = connection.getHeaderField("Content-Type");
@@ -137,38 +408,42 @@ public final class URLFetcher {
       mediaType = mediaType.substring(0, charset);
     }
     if (service != null) {
-      System.out.println("-> Service:" + service + " as " + mediaType + " [" + encoding + "]");
+      System.out.println("Fetching " + url + " -> Service:" + service + " as " + mediaType + " [" + encoding + "]");
     } else {
-      System.out.println("-> " + mediaType + " [" + encoding + "]");
+      System.out.println("Fetching " + url + " -> " + mediaType + " [" + encoding + "]");
+    }
+
+    // Large binary content is downloaded so that it can be resumed
+    long length = connection.getContentLengthLong();
+    boolean text = "text/html".equals(mediaType) || "text/css".equals(mediaType)
+        || (config.isMinifying() && isJavaScript(mediaType) && !file.getName().endsWith(".min.js"));
+    if (!text && (length < 0 || length > MAX_HANDOFF_SIZE)) {
+      new RangedDownload(writer(), config, this._resource, connection.getURL(), file, () -> releaseSession(config)).retrieve(connection);
+      return false;
     }
 
     // Grab the content
     InputStream in = connection.getInputStream();
 
     // Text content that requires processing
-    if ("text/html".equals(mediaType) || "text/css".equals(mediaType)) {
-      String content = IOUtils.toString(in, encoding);
+    if (text) {
+      this._content = IOUtils.toString(in, encoding);
+      this._mediaType = mediaType;
+      this._file = file;
+      this._path = path;
       connection.disconnect();
+      return true;
 
-      // Parse HTML and fetch scripts and CSS
-      if ("text/html".equals(mediaType)) {
-        content = processHTML(content, config, path);
-      } else if ("text/css".equals(mediaType)) {
-        content = processCSS(content, config, path);
-      }
-
-      // Output to the file
-      FileOutputStream fos = new FileOutputStream(file);
-      OutputStreamWriter out = new OutputStreamWriter(fos, config.encoding());
-      IOUtils.copy(new StringReader(content), out);
-      out.close();
-
-      // Binary content
+      // Small binary content is handed off
     } else {
-      FileOutputStream fos = new FileOutputStream(file);
-      IOUtils.copy(in, fos);
+      byte[] data = IOUtils.toByteArray(in);
       connection.disconnect();
-      fos.close();
+      Optimizer optimizer = optimizer();
+      if (optimizer != null) {
+        this._dataURI = optimizer.toDataURI(mediaType, data);
+      }
+      writer().write(file, data);
+      return false;
     }
   }
 
@@ -189,10 +464,7 @@ public final class URLFetcher {
     }
 
     // Output to the file
-    FileOutputStream fos = new FileOutputStream(file);
-    OutputStreamWriter out = new OutputStreamWriter(fos, config.encoding());
-    IOUtils.copy(new StringReader(stub.toString()), out);
-    out.close();
+    writer().write(file, stub.toString().getBytes(config.encoding()));
   }
 
   /**
@@ -216,6 +488,105 @@ public final class URLFetcher {
     linkEnd.retrieve(config);
   }
 
+  /**
+   * Returns the URL of the specified resource for the given config.
+   *
+   * @param resource The resource.
+   * @param config The SnapShot config.
+   *
+   * @return The URL to retrieve the resource, including the session ID if any.
+   *
+   * @throws MalformedURLException If the URL is not valid.
+   */
+  static URL toURL(Resource resource, Config config) throws MalformedURLException {
+    return toURL(resource, config, config.getJSession());
+  }
+
+  /**
+   * Returns the URL of the specified resource using the specified session.
+   *
+   * @param resource The resource.
+   * @param config The SnapShot config.
+   * @param jsession The session ID (may be <code>null</code>).
+   *
+   * @return The URL to retrieve the resource.
+   *
+   * @throws MalformedURLException If the URL is not valid.
+   */
+  static URL toURL(Resource resource, Config config, String jsession) throws MalformedURLException {
+    return new URL(config.baseURL() + (jsession != null ? resource.path(jsession) : resource.path()));
+  }
+
+  /**
+   * Opens a GET connection to the specified URL.
+   *
+   * @param url    The URL to connect to.
+   * @param config The snapshot configuration.
+   *
+   * @return The connected connection.
+   *
+   * @throws IOException If the connection could not be established.
+   */
+  static HttpURLConnection connect(URL url, Config config) throws IOException {
+    HttpURLConnection connection = open(url, config);
+    connection.connect();
+    return connection;
+  }
+
+  /**
+   * Opens a GET connection to the specified URL without connecting.
+   *
+   * <p>
+   * The connection uses the timeouts of the configuration so that a stalled transfer fails.
+   *
+   * @param url    The URL to connect to.
+   * @param config The snapshot configuration.
+   *
+   * @return The connection to configure and connect.
+   *
+   * @throws IOException If the connection could not be opened.
+   */
+  static HttpURLConnection open(URL url, Config config) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(config.getConnectTimeout());
+    connection.setReadTimeout(config.getReadTimeout());
+    connection.setRequestMethod("GET");
+    connection.setRequestProperty("User-Agent", USER_AGENT);
+    return connection;
+  }
+
+  /**
+   * Retrieves a resource linked from this resource.
+   *
+   * <p>
+   * When part of a pipeline, the resource is submitted to the pipeline; otherwise it is
+   * retrieved immediately.
+   *
+   * @param path The path to the linked resource.
+   * @param config The SnapShot config.
+   *
+   * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
+   */
+  private void follow(String path, Config config) throws IOException {
+    if (this._pipeline != null) {
+      this._pipeline.negativeCache().link(this._resource.path(), path);
+      this._pipeline.follow(new Resource(path, "GET"));
+    } else {
+      URLFetcher.retrieve(path, config);
+    }
+  }
+
+  /**
+   * Indicates whether the media type is used for JavaScript.
+   *
+   * @return <code>true</code> if it is; <code>false</code> otherwise.
+   */
+  private static boolean isJavaScript(String mediaType) {
+    return "application/javascript".equals(mediaType)
+        || "text/javascript".equals(mediaType)
+        || "application/x-javascript".equals(mediaType);
+  }
+
   /**
    * Indicates whether a stub can be created (for example for JavaScript or CSS).
    *
@@ -245,16 +616,106 @@ public final class URLFetcher {
    * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
    */
   private String processHTML(String content, Config config, String origin) throws IOException {
+    // Local stylesheets to replace by a bundle (start of the tag in the content)
+    Map<Integer, String> bundled = bundle(content, config, origin);
+
     StringBuffer html = new StringBuffer();
     Matcher m = LINKS.matcher(content);
     while (m.find()) {
-      String replacement = processLink(m.group(), config, origin);
-      m.appendReplacement(html, replacement);
+      String replacement;
+      String bundle = bundled.get(m.start());
+      if (bundle == null) {
+        replacement = processLink(m.group(), config, origin);
+      } else if (!bundle.isEmpty()) {
+        replacement = "<link rel=\"stylesheet\" type=\"text/css\" href=\"" + toRelativePath(origin, bundle) + "\"/>";
+      } else {
+        replacement = "";
+      }
+      m.appendReplacement(html, Matcher.quoteReplacement(replacement));
     }
     m.appendTail(html);
     return html.toString();
   }
 
+  /**
+   * Bundles the local stylesheets of the page if the optimizer is bundling stylesheets.
+   *
+   * <p>
+   * Only stylesheets without a <code>media</code> attribute or for all media are bundled, and only
+   * consecutive ones, separated by nothing but white space and comments, so that the cascade is
+   * preserved. Each group of at least two consecutive stylesheets is replaced by its own bundle.
+   *
+   * @param content The entire HTML content.
+   * @param config The snapshot configuration.
+   * @param origin The path to this HTML file.
+   *
+   * @return The start of each bundled <code>link</code> element in the content mapped to the
+   *         path to its bundle for the first of each group, or to an empty string otherwise.
+   */
+  private Map<Integer, String> bundle(String content, Config config, String origin) {
+    Map<Integer, String> bundled = new HashMap<>();
+    Optimizer optimizer = optimizer();
+    if (optimizer == null || !optimizer.isBundling()) return bundled;
+    List<Integer> starts = new ArrayList<>();
+    List<String> paths = new ArrayList<>();
+    int end = -1;
+    Matcher m = LINKS.matcher(content);
+    while (m.find()) {
+      String tag = m.group();
+      if (!tag.startsWith("<link ") || !STYLESHEET.matcher(tag).find()) continue;
+      Matcher media = MEDIA.matcher(tag);
+      if (media.find() && !"all".equalsIgnoreCase(unquote(media.group(1)))) continue;
+      Matcher href = HREF.matcher(tag);
+      if (!href.find()) continue;
+      String path = resolve(unquote(href.group(2)), origin);
+      if (path == null) continue;
+      // Anything else in between ends the group
+      if (end >= 0 && !GAP.matcher(content).region(end, m.start()).matches()) {
+        bundle(starts, paths, config, origin, bundled);
+        starts.clear();
+        paths.clear();
+      }
+      starts.add(m.start());
+      paths.add(path);
+      end = m.end();
+    }
+    bundle(starts, paths, config, origin, bundled);
+    return bundled;
+  }
+
+  /**
+   * Bundles a group of consecutive stylesheets if there are at least two of them.
+   *
+   * @param starts  The start of each <code>link</code> element in the content.
+   * @param paths   The path to each stylesheet.
+   * @param config  The snapshot configuration.
+   * @param origin  The path to this HTML file.
+   * @param bundled Receives the bundled <code>link</code> elements.
+   */
+  private void bundle(List<Integer> starts, List<String> paths, Config config, String origin, Map<Integer, String> bundled) {
+    if (paths.size() < 2) return;
+    for (String path : paths) {
+      this._pipeline.negativeCache().link(this._resource.path(), path);
+    }
+    CompletableFuture<String> bundle = optimizer().bundle(paths, config);
+    String path;
+    if (isPending(bundle)) {
+      // Leave the stylesheets alone until it is known whether they are bundled
+      path = "";
+    } else {
+      try {
+        path = bundle.join();
+      } catch (CompletionException ex) {
+        System.err.println("Unable to bundle stylesheets for " + origin + ": " + ex.getCause());
+        path = null;
+      }
+      if (path == null) return;
+    }
+    for (int i = 0; i < starts.size(); i++) {
+      bundled.put(starts.get(i), i == 0 ? path : "");
+    }
+  }
+
   /**
    * Process an HTML linked item (image, script, styles, etc...)
    *
@@ -271,17 +732,25 @@ public final class URLFetcher {
    */
   private String processLink(String tag, Config config, String origin) throws IOException {
     StringBuffer html = new StringBuffer();
-    Pattern p = Pattern.compile("(src|href)=(\"[^\"]*\"|\'[^\']*\')");
-    Matcher m = p.matcher(tag);
+    Matcher m = HREF.matcher(tag);
     if (m.find()) {
       String type = m.group(1);
       String location = m.group(2);
       location = unquote(location);
 
-      if (location.startsWith("/")) {
+      // Inline small images and icons
+      String uri = null;
+      if (tag.startsWith("<img ") || (tag.startsWith("<link ") && ICON.matcher(tag).find())) {
+        uri = inline(resolve(location, origin), config);
+      }
+
+      if (uri != null) {
+        m.appendReplacement(html, Matcher.quoteReplacement(type + "=\"" + uri + "\""));
+
+      } else if (location.startsWith("/")) {
         // Fetch images, scripts and styles (but do not follow links <a>)
         if (!tag.startsWith("<a ")) {
-          URLFetcher.retrieve(location, config);
+          follow(location, config);
         }
         // Rewrite the absolute paths
         m.appendReplacement(html, type + "=\"" + toRelativePath(origin, location) + "\"");
@@ -296,7 +765,7 @@ public final class URLFetcher {
         String parent = origin.indexOf('/') >= 0 ? origin.substring(0, origin.lastIndexOf('/')) + "/" : "/";
         // Fetch images, scripts and styles (but do not follow links <a>)
         if (!tag.startsWith("<a ")) {
-          URLFetcher.retrieve(parent + location, config);
+          follow(parent + location, config);
         }
         // Rewrite relative paths
         m.appendReplacement(html, type + "=\"" + toRelativePath(origin, parent + location) + "\"");
@@ -323,13 +792,29 @@ public final class URLFetcher {
    * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
    */
   String processCSS(String content, Config config, String origin) throws IOException {
+    return processCSS(content, config, origin, origin);
+  }
+
+  /**
+   * Process CSS content which is written to a different location, for example in a bundle.
+   *
+   * @param content The CSS content
+   * @param config The snapshot configuration.
+   * @param base The path to the CSS file that relative <code>url()</code> are resolved against.
+   * @param origin The path to the file the CSS is written to.
+   *
+   * @return the updated CSS content.
+   *
+   * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
+   */
+  String processCSS(String content, Config config, String base, String origin) throws IOException {
     StringBuffer css = null;
     Matcher m = URLS.matcher(content);
     while (m.find()) {
       if (css == null) {
         css = new StringBuffer();
       }
-      m.appendReplacement(css, processUrl(m.group(), config, origin));
+      m.appendReplacement(css, Matcher.quoteReplacement(processUrl(m.group(), config, base, origin)));
     }
     if (css != null) {
       m.appendTail(css);
@@ -342,22 +827,28 @@ public final class URLFetcher {
    *
    * @param link The complete matching tag.
    * @param config The snapshot configuration.
-   * @param origin The path to the CSS file.
+   * @param base The path to the CSS file that relative links are resolved against.
+   * @param origin The path to the file the CSS is written to.
    *
    * @return The rewritten link
    *
    * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
    */
-  String processUrl(String link, Config config, String origin) throws IOException {
+  String processUrl(String link, Config config, String base, String origin) throws IOException {
     StringBuffer css = new StringBuffer();
     Pattern p = Pattern.compile("url\\(([^)]*)\\)");
     Matcher m = p.matcher(link);
     if (m.find()) {
       String location = m.group(1);
       location = unquote(location);
-      // Rewrite the absolute paths
-      if (location.startsWith("/")) {
-        URLFetcher.retrieve(location, config);
+      String uri = inline(resolve(location, base), config);
+      // Inline small assets
+      if (uri != null) {
+        m.appendReplacement(css, Matcher.quoteReplacement("url(" + uri + ")"));
+
+        // Rewrite the absolute paths
+      } else if (location.startsWith("/")) {
+        follow(location, config);
         m.appendReplacement(css, "url(" + toRelativePath(origin, location) + ")");
 
         // Ignore full path and internal links
@@ -368,8 +859,8 @@ public final class URLFetcher {
 
         // Rewrite relative paths
       } else {
-        String parent = origin.indexOf('/') >= 0 ? origin.substring(0, origin.lastIndexOf('/')) + "/" : "/";
-        URLFetcher.retrieve(parent + location, config);
+        String parent = base.indexOf('/') >= 0 ? base.substring(0, base.lastIndexOf('/')) + "/" : "/";
+        follow(parent + location, config);
         m.appendReplacement(css, "url(" + toRelativePath(origin, parent + location) + ")");
       }
     }
@@ -377,6 +868,66 @@ public final class URLFetcher {
     return css.toString();
   }
 
+  /**
+   * Returns the data URI for the specified local asset if it should be inlined.
+   *
+   * @param path The path to the asset (may be <code>null</code>).
+   * @param config The snapshot configuration.
+   *
+   * @return the data URI or <code>null</code>.
+   *
+   * @throws IOException In case of an unrecoverable and unexpected I/O or network error.
+   */
+  private String inline(String path, Config config) throws IOException {
+    Optimizer optimizer = optimizer();
+    if (path == null || optimizer == null || !optimizer.isInlining()) return null;
+    CompletableFuture<String> uri = optimizer.inline(path);
+    if (isPending(uri)) {
+      // Make sure it is fetched, the rewrite is done again afterwards
+      follow(path, config);
+      return null;
+    }
+    String data = uri.join();
+    return data.isEmpty() ? null : data;
+  }
+
+  /**
+   * Indicates whether the future has not completed yet, in which case the rewrite waits for it.
+   */
+  private boolean isPending(CompletableFuture<?> future) {
+    if (future.isDone()) return false;
+    if (this._awaiting != null) {
+      this._awaiting.add(future);
+    }
+    return true;
+  }
+
+  /**
+   * @return the optimizer of the pipeline or <code>null</code> when retrieving sequentially.
+   */
+  private Optimizer optimizer() {
+    return this._pipeline != null ? this._pipeline.optimizer() : null;
+  }
+
+  /**
+   * Resolves the location of a local resource against the path of the file that refers to it.
+   *
+   * @param location The location as specified in the file.
+   * @param origin The path to the referring file.
+   *
+   * @return the path to the resource or <code>null</code> if the location is not local.
+   */
+  private static String resolve(String location, String origin) {
+    if (location.startsWith("http://")
+        || location.startsWith("https://")
+        || location.startsWith("data:")
+        || location.startsWith("//")
+        || location.startsWith("#")) return null;
+    if (location.startsWith("/")) return location;
+    String parent = origin.indexOf('/') >= 0 ? origin.substring(0, origin.lastIndexOf('/')) + "/" : "/";
+    return parent + location;
+  }
+
   /**
    * Compute the relative path from the specified origin to the specified target.
    *